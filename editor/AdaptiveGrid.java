@@ -0,0 +1,237 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Approximates the inverse map by evaluating it exactly on a coarse grid and interpolating bilinearly inside each cell.
+ * A cell is checked at its center and edge midpoints; where the interpolated map is more than \a tolerance pixels away
+ * from the exact one the cell is split in four, down to 2 x 2 pixel cells which are then exact. Exact evaluations go
+ * through the engine's DistortKernel, one pixel at a time, so the grid follows the selected backend and weighting.
+ */
+public class AdaptiveGrid
+{
+  /** Size in pixels of the coarsest cells, a power of two. */
+  public final int cell;
+
+  /** Largest accepted distance in pixels between the interpolated and the exact source position at a check point. */
+  public final double tolerance;
+
+  private boolean measure_deviation = false;
+
+  // Statistics of the last renders, reset by resetStats
+  private final DoubleAccumulator max_estimated = new DoubleAccumulator(Math::max, 0);
+  private final DoubleAccumulator max_measured = new DoubleAccumulator(Math::max, 0);
+  private final LongAdder evaluations = new LongAdder();
+
+  // Band state of each thread, reused by its mapBand calls
+  private final ThreadLocal<Band> bands = new ThreadLocal<Band>();
+
+  /** Create a grid with cells of \a cell pixels (rounded up to a power of two, at least 2). */
+  public AdaptiveGrid(int cell, double tolerance)
+  {
+    int size = 2;
+    while (size < cell)
+      size *= 2;
+
+    this.cell = size;
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Also evaluate the exact map at every pixel and record the largest deviation, see maxMeasuredDeviation. This costs as
+   * much as exact mode and is meant for checking a tolerance.
+   */
+  public void setMeasureDeviation(boolean measure)
+  {
+    measure_deviation = measure;
+  }
+
+  /** Clear the statistics. */
+  public void resetStats()
+  {
+    max_estimated.reset();
+    max_measured.reset();
+    evaluations.reset();
+  }
+
+  /** Largest deviation from exact mode seen at the check points of accepted cells. */
+  public double maxEstimatedDeviation() { return max_estimated.get(); }
+
+  /** Largest deviation from exact mode over all pixels, if setMeasureDeviation is on. */
+  public double maxMeasuredDeviation() { return max_measured.get(); }
+
+  /** Number of exact evaluations of the map. */
+  public long evaluations() { return evaluations.sum(); }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Evaluation
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Number of grid nodes along a row of width \a w, the length of the node rows passed to mapBand. */
+  public int nodeCount(int w)
+  {
+    return Math.max(2, (w - 1 + cell - 1) / cell + 1);
+  }
+
+  /**
+   * Fill the source positions of rows y0 .. y0+cell-1 (clipped to the w x h image) into map_x, map_y, indexed by
+   * (row - y0) * w + col. The arrays must hold cell * w values. Returns the number of rows filled.
+   *
+   * \a nodes holds four rows of nodeCount(w) values: the x and y of the band's top node row, then of its bottom one.
+   * With \a have_top the top row is taken as given, as left by the mapBand call of the band above; on return the first
+   * two rows hold this band's bottom row, so consecutive bands evaluate each shared node row once.
+   */
+  public int mapBand(DistortKernel kernel, SegmentPlan plan, double a, double b, int y0, int w, int h, double[] map_x,
+                     double[] map_y, double[][] nodes, boolean have_top)
+  {
+    Band band = bands.get();
+    if (band == null)
+    {
+      band = new Band();
+      bands.set(band);
+    }
+    band.set(kernel, plan, a, b, y0, w, h, map_x, map_y);
+
+    int num_nodes = nodeCount(w);
+    double[] top_x = nodes[0], top_y = nodes[1], bot_x = nodes[2], bot_y = nodes[3];
+    for (int i = 0; i < num_nodes; ++i)
+    {
+      if (!have_top)
+      {
+        band.evaluate(i * cell, y0);
+        top_x[i] = band.ex; top_y[i] = band.ey;
+      }
+      band.evaluate(i * cell, y0 + cell);
+      bot_x[i] = band.ex; bot_y[i] = band.ey;
+    }
+
+    for (int i = 0; i + 1 < num_nodes; ++i)
+      band.refine(i * cell, y0, cell, top_x[i], top_y[i], top_x[i + 1], top_y[i + 1],
+                                      bot_x[i], bot_y[i], bot_x[i + 1], bot_y[i + 1]);
+
+    int rows = Math.min(cell, h - y0);
+    if (measure_deviation)
+    {
+      for (int row = y0; row < y0 + rows; ++row)
+        for (int col = 0; col < w; ++col)
+        {
+          band.evaluate(col, row);
+          int k = (row - y0) * w + col;
+          max_measured.accumulate(Math.hypot(map_x[k] - band.ex, map_y[k] - band.ey));
+        }
+    }
+
+    // the bottom row becomes the next band's top row
+    nodes[0] = bot_x; nodes[1] = bot_y;
+    nodes[2] = top_x; nodes[3] = top_y;
+    return rows;
+  }
+
+  /** Evaluation state of one band of cells. */
+  private class Band
+  {
+    DistortKernel kernel;
+    SegmentPlan plan;
+    double a, b;
+    int y0, w, h;
+    double[] map_x, map_y;
+
+    // result of the last exact evaluation
+    final double[] eval_x = new double[1], eval_y = new double[1];
+    double ex, ey;
+
+    void set(DistortKernel kernel, SegmentPlan plan, double a, double b, int y0, int w, int h, double[] map_x,
+             double[] map_y)
+    {
+      this.kernel = kernel;
+      this.plan = plan;
+      this.a = a;
+      this.b = b;
+      this.y0 = y0;
+      this.w = w;
+      this.h = h;
+      this.map_x = map_x;
+      this.map_y = map_y;
+    }
+
+    void evaluate(int x, int y)
+    {
+      kernel.mapRow(plan, a, b, y, x, x + 1, eval_x, eval_y);
+      ex = eval_x[0];
+      ey = eval_y[0];
+      evaluations.increment();
+    }
+
+    /** Fill the cell of size s at (x0, y0) given the exact map at its corners. */
+    void refine(int x0, int cy0, int s, double x00, double y00, double x01, double y01,
+                                        double x10, double y10, double x11, double y11)
+    {
+      if (x0 >= w || cy0 >= h)
+        return;
+
+      int hs = s / 2;
+
+      // exact map at the edge midpoints and center
+      evaluate(x0 + hs, cy0);      double tx = ex, ty = ey;
+      evaluate(x0, cy0 + hs);      double lx = ex, ly = ey;
+      evaluate(x0 + hs, cy0 + hs); double cx = ex, cy = ey;
+      evaluate(x0 + s, cy0 + hs);  double rx = ex, ry = ey;
+      evaluate(x0 + hs, cy0 + s);  double bx = ex, by = ey;
+
+      double err = 0;
+      err = Math.max(err, Math.hypot(tx - 0.5 * (x00 + x01), ty - 0.5 * (y00 + y01)));
+      err = Math.max(err, Math.hypot(lx - 0.5 * (x00 + x10), ly - 0.5 * (y00 + y10)));
+      err = Math.max(err, Math.hypot(rx - 0.5 * (x01 + x11), ry - 0.5 * (y01 + y11)));
+      err = Math.max(err, Math.hypot(bx - 0.5 * (x10 + x11), by - 0.5 * (y10 + y11)));
+      err = Math.max(err, Math.hypot(cx - 0.25 * (x00 + x01 + x10 + x11), cy - 0.25 * (y00 + y01 + y10 + y11)));
+
+      if (err <= tolerance)
+      {
+        max_estimated.accumulate(err);
+        fill(x0, cy0, s, x00, y00, x01, y01, x10, y10, x11, y11);
+      }
+      else if (s == 2)
+      {
+        // every pixel of the cell is a corner, midpoint or center
+        store(x0, cy0, x00, y00);
+        store(x0 + 1, cy0, tx, ty);
+        store(x0, cy0 + 1, lx, ly);
+        store(x0 + 1, cy0 + 1, cx, cy);
+      }
+      else
+      {
+        refine(x0, cy0, hs, x00, y00, tx, ty, lx, ly, cx, cy);
+        refine(x0 + hs, cy0, hs, tx, ty, x01, y01, cx, cy, rx, ry);
+        refine(x0, cy0 + hs, hs, lx, ly, cx, cy, x10, y10, bx, by);
+        refine(x0 + hs, cy0 + hs, hs, cx, cy, rx, ry, bx, by, x11, y11);
+      }
+    }
+
+    /** Bilinearly interpolate the corner values over the pixels of a cell. */
+    void fill(int x0, int cy0, int s, double x00, double y00, double x01, double y01,
+                                      double x10, double y10, double x11, double y11)
+    {
+      int x1 = Math.min(x0 + s, w), y1 = Math.min(cy0 + s, h);
+      double inv = 1.0 / s;
+      for (int row = cy0; row < y1; ++row)
+      {
+        double fy = (row - cy0) * inv;
+        double lx = x00 + (x10 - x00) * fy, ly = y00 + (y10 - y00) * fy;
+        double rx = x01 + (x11 - x01) * fy, ry = y01 + (y11 - y01) * fy;
+        for (int col = x0; col < x1; ++col)
+        {
+          double fx = (col - x0) * inv;
+          store(col, row, lx + (rx - lx) * fx, ly + (ry - ly) * fx);
+        }
+      }
+    }
+
+    void store(int col, int row, double x, double y)
+    {
+      if (col < w && row < h)
+      {
+        int k = (row - y0) * w + col;
+        map_x[k] = x;
+        map_y[k] = y;
+      }
+    }
+  }
+}
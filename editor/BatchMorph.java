@@ -0,0 +1,393 @@
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+/**
+ * Headless batch renderer: finds the image pairs of a directory and renders a morph sequence for each with the Java
+ * engine. A pair is two same-sized images named nameA.ext and nameB.ext, or name0.0.ext and name1.0.ext as in images/,
+ * with correspondences in name.txt or the binary name.segs (see CorrespondenceFile, preferred if both exist) next to
+ * them or in the -correspondences directory; pairs without one are skipped.
+ *
+ * Compute and I/O are kept apart. Frames render in row bands on one ForkJoinPool of -threads platform threads shared by
+ * all pairs. PNG encoding is CPU work too, so it runs on its own pool of -encoders platform threads, sized apart from
+ * the compute pool; up to -encode_backlog frames wait for it. File reads, image decodes and the writes of the encoded
+ * frames to output_dir/nameNNN.png run on virtual threads, up to -in_flight pairs loading ahead of the one rendering,
+ * so a blocked read or write parks a virtual thread instead of holding a compute or encoder thread. Runs with
+ * java.awt.headless=true and reports frames/s and megapixels/s per pair and overall.
+ */
+public class BatchMorph
+{
+  // Suffixes of the first and second image of a pair
+  private static final String[][] PAIR_SUFFIXES = { { "A", "B" }, { "0.0", "1.0" } };
+  private static final String[] EXTENSIONS = { ".jpeg", ".jpg", ".png" };
+
+  // Command-line program arguments
+  private String input_dir_name;
+  private String output_dir_name;
+  private String correspondence_dir_name = null;
+  private int num_frames = 0;
+  private double a = 0.5, b = 1, p = 0.2;
+  private int num_threads = Runtime.getRuntime().availableProcessors();
+  private int in_flight = 16;
+  private int num_encoders = 2;
+  private int encode_backlog = 16;
+  private String backend = "scalar";
+  private boolean fast_pow = false;
+  private boolean print_verbose = false;
+
+  /** Two images and their correspondences. */
+  static class Pair
+  {
+    final String name;
+    final File image1, image2, correspondences;
+
+    Pair(String name, File image1, File image2, File correspondences)
+    {
+      this.name = name;
+      this.image1 = image1;
+      this.image2 = image2;
+      this.correspondences = correspondences;
+    }
+  }
+
+  /** A pair's decoded images and correspondences, or why they could not be loaded. */
+  private static class LoadedPair
+  {
+    final Pair pair;
+    BufferedImage img1, img2;
+    double[] pairs;
+    String error;
+
+    LoadedPair(Pair pair)
+    {
+      this.pair = pair;
+    }
+  }
+
+  // Shared state
+  private MorphEngine engine;
+  private final FramePool frame_pool = new FramePool();
+  private ExecutorService io, encoders;
+  private Semaphore encode_permits;
+  private final ConcurrentLinkedQueue<String> encode_failures = new ConcurrentLinkedQueue<String>();
+
+  ////////////////////////////////////////////////////////////////////////
+  // Pair discovery
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Find the pairs of \a dir, sorted by name, with correspondence files in \a correspondence_dir. */
+  static ArrayList<Pair> findPairs(File dir, File correspondence_dir)
+  {
+    ArrayList<Pair> pairs = new ArrayList<Pair>();
+    String[] names = dir.list();
+    if (names == null)
+      return pairs;
+
+    Arrays.sort(names);
+    for (String file_name : names)
+      for (String[] suffixes : PAIR_SUFFIXES)
+        for (String extension : EXTENSIONS)
+        {
+          String first = suffixes[0] + extension;
+          if (!file_name.endsWith(first) || file_name.length() == first.length())
+            continue;
+
+          String name = file_name.substring(0, file_name.length() - first.length());
+          File image2 = new File(dir, name + suffixes[1] + extension);
+          File correspondences = new File(correspondence_dir, name + CorrespondenceFile.BINARY_EXTENSION);
+          if (!correspondences.isFile())
+            correspondences = new File(correspondence_dir, name + ".txt");
+          if (image2.isFile())
+            pairs.add(new Pair(name, new File(dir, file_name), image2, correspondences));
+        }
+    return pairs;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Rendering
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Render every pair with correspondences. Returns the number of pairs that failed, plus 1 if any encode failed. */
+  public int render(ArrayList<Pair> pairs) throws InterruptedException
+  {
+    engine = new MorphEngine(new ForkJoinPool(num_threads));
+    engine.setParameters(a, b, p);
+    engine.setKernel(MorphEngine.createKernel(backend, fast_pow));
+    io = Executors.newVirtualThreadPerTaskExecutor();
+    encoders = Executors.newFixedThreadPool(num_encoders, new ThreadFactory() {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable task) { return new Thread(task, "encode-" + count++); }
+    });
+    encode_permits = new Semaphore(encode_backlog);
+
+    // frames are encoded to memory, without ImageIO's temporary files
+    ImageIO.setUseCache(false);
+
+    ArrayDeque<Pair> pending = new ArrayDeque<Pair>();
+    for (Pair pair : pairs)
+    {
+      if (pair.correspondences.isFile())
+        pending.add(pair);
+      else
+        System.err.println(pair.name + ": skipped, no correspondence file " + pair.correspondences);
+    }
+
+    // Keep in_flight pairs loading ahead, and render them in the order they finish loading
+    ExecutorCompletionService<LoadedPair> loads = new ExecutorCompletionService<LoadedPair>(io);
+    int loading = 0;
+    for (; loading < in_flight && !pending.isEmpty(); ++loading)
+      submitLoad(loads, pending.poll());
+
+    int failed = 0;
+    long total_frames = 0, total_pixels = 0;
+    long start = System.nanoTime();
+    for (; loading > 0; --loading)
+    {
+      LoadedPair loaded = getLoaded(loads.take());
+      if (!pending.isEmpty())
+      {
+        submitLoad(loads, pending.poll());
+        loading++;
+      }
+
+      if (loaded.error != null)
+      {
+        System.err.println(loaded.pair.name + ": " + loaded.error);
+        failed++;
+        continue;
+      }
+
+      long pair_start = System.nanoTime();
+      long pixels = renderPair(loaded);
+      total_frames += num_frames;
+      total_pixels += pixels;
+      if (print_verbose)
+        report(loaded.pair.name, num_frames, pixels, System.nanoTime() - pair_start);
+    }
+
+    // the encoders hand their last writes to io, so they stop first
+    encoders.shutdown();
+    encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    io.shutdown();
+    io.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    for (String failure : encode_failures)
+      System.err.println(failure);
+
+    report("Total", total_frames, total_pixels, System.nanoTime() - start);
+    return failed + (encode_failures.isEmpty() ? 0 : 1);
+  }
+
+  /** Read and decode a pair's images and correspondences on a virtual thread. */
+  private void submitLoad(ExecutorCompletionService<LoadedPair> loads, final Pair pair)
+  {
+    loads.submit(new Callable<LoadedPair>() {
+      public LoadedPair call()
+      {
+        LoadedPair loaded = new LoadedPair(pair);
+        loaded.img1 = Editor.loadImage(pair.image1.getPath());
+        loaded.img2 = Editor.loadImage(pair.image2.getPath());
+        if (loaded.img1 == null || loaded.img2 == null)
+          loaded.error = "could not load images";
+        else if (loaded.img1.getWidth() != loaded.img2.getWidth() || loaded.img1.getHeight() != loaded.img2.getHeight())
+          loaded.error = "both images must be the same dimensions";
+        else
+        {
+          try { loaded.pairs = CorrespondenceFile.readPairs(pair.correspondences.getPath()); }
+          catch (IOException e) { loaded.error = e.getMessage(); }
+        }
+        return loaded;
+      }
+    });
+  }
+
+  private static LoadedPair getLoaded(Future<LoadedPair> future) throws InterruptedException
+  {
+    try { return future.get(); }
+    catch (ExecutionException e) { throw new IllegalStateException("Pair loader failed", e.getCause()); }
+  }
+
+  /**
+   * Render all frames of a loaded pair, handing each to an encoder thread and its PNG to a virtual thread to write.
+   * Returns the pixels rendered.
+   */
+  private long renderPair(LoadedPair loaded) throws InterruptedException
+  {
+    final int w = loaded.img1.getWidth(), h = loaded.img1.getHeight();
+    double[] pairs = loaded.pairs;
+    int n = pairs.length / 8;
+    int guard1 = PaddedSampler.guardFor(SegmentPlan.compile(pairs, n, false, 1, p), w, h);
+    int guard2 = PaddedSampler.guardFor(SegmentPlan.compile(pairs, n, true, 1, p), w, h);
+    BilinearSampler src1 = new PaddedSampler(loaded.img1, guard1), src2 = new PaddedSampler(loaded.img2, guard2);
+
+    for (int i = 0; i < num_frames; ++i)
+    {
+      double t = (num_frames > 1 ? (double)i / (num_frames - 1) : 0.0);
+      SegmentPlan plan1 = SegmentPlan.compile(pairs, n, false, t, p);
+      SegmentPlan plan2 = SegmentPlan.compile(pairs, n, true, 1 - t, p);
+      final int[] frame = engine.morph(src1, src2, plan1, plan2, t, frame_pool.acquire(w, h, 4));
+
+      // encode while the next frame renders, with a bounded backlog
+      final File output = new File(output_dir_name, loaded.pair.name + String.format("%03d", i) + ".png");
+      encode_permits.acquire();
+      encoders.execute(new Runnable() {
+        public void run()
+        {
+          final ByteArrayOutputStream png = new ByteArrayOutputStream();
+          boolean encoded = false;
+          try
+          {
+            encoded = ImageIO.write(BilinearSampler.wrap(frame, w, h), "png", png);
+            if (!encoded)
+              encode_failures.add(output + ": no PNG writer");
+          }
+          catch (IOException e)
+          {
+            encode_failures.add(output + ": " + e.getMessage());
+          }
+          finally
+          {
+            frame_pool.release(frame, w, h, 4);
+            if (!encoded)
+              encode_permits.release();
+          }
+          if (encoded)
+            writeFrame(png, output);
+        }
+      });
+    }
+
+    return (long)num_frames * w * h;
+  }
+
+  /** Write an encoded frame on a virtual thread, then let the next frame into the backlog. */
+  private void writeFrame(final ByteArrayOutputStream png, final File output)
+  {
+    io.execute(new Runnable() {
+      public void run()
+      {
+        try (FileOutputStream out = new FileOutputStream(output))
+        {
+          png.writeTo(out);
+        }
+        catch (IOException e)
+        {
+          encode_failures.add(output + ": " + e.getMessage());
+        }
+        finally
+        {
+          encode_permits.release();
+        }
+      }
+    });
+  }
+
+  private static void report(String name, long frames, long pixels, long ns)
+  {
+    double secs = ns / 1e9;
+    System.out.println(String.format(Locale.ROOT, "%s: %d frames in %.2f s, %.2f frames/s, %.2f megapixels/s", name,
+                                     frames, secs, frames / secs, pixels / 1e6 / secs));
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Program argument parsing
+  ////////////////////////////////////////////////////////////////////////
+
+  private boolean parseArgs(String[] args)
+  {
+    int current_positional = 0;
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (args[i].equals("-v"))
+        print_verbose = true;
+      else if (args[i].equals("-correspondences"))
+        correspondence_dir_name = args[++i];
+      else if (args[i].equals("-threads"))
+        num_threads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-in_flight"))
+        in_flight = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-encoders"))
+        num_encoders = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-encode_backlog"))
+        encode_backlog = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-backend"))
+        backend = args[++i];
+      else if (args[i].equals("-fast_pow"))
+        fast_pow = true;
+      else
+      {
+        switch (current_positional)
+        {
+          case 0: input_dir_name = args[i]; break;
+          case 1: num_frames = Integer.parseInt(args[i]); break;
+          case 2: output_dir_name = args[i]; break;
+          case 3: a = Double.parseDouble(args[i]); break;
+          case 4: b = Double.parseDouble(args[i]); break;
+          case 5: p = Double.parseDouble(args[i]); break;
+          default: System.err.println("Invalid program argument: " + args[i]); return false;
+        }
+        current_positional++;
+      }
+    }
+
+    if (current_positional != 3 && current_positional != 6)
+    {
+      System.err.println("Usage: BatchMorph input_dir num_frames output_dir [a b p] [-correspondences dir]"
+                       + " [-threads n] [-encoders n] [-in_flight n] [-encode_backlog n]"
+                       + " [-backend scalar|simd] [-fast_pow] [-v]");
+      return false;
+    }
+
+    if (num_frames < 1 || num_threads < 1 || num_encoders < 1 || in_flight < 1 || encode_backlog < 1)
+    {
+      System.err.println("Frame, thread, pair and backlog counts must be positive");
+      return false;
+    }
+
+    // every frame has its own t, so specialized kernels would be generated per frame and never reused
+    if (!backend.equals("scalar") && !backend.equals("simd"))
+    {
+      System.err.println("Backend must be scalar or simd: " + backend);
+      return false;
+    }
+
+    // Return OK status
+    return true;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Main program
+  ////////////////////////////////////////////////////////////////////////
+
+  public static void main(String[] args) throws InterruptedException
+  {
+    // before any AWT class is initialized
+    System.setProperty("java.awt.headless", "true");
+
+    BatchMorph batch = new BatchMorph();
+    if (!batch.parseArgs(args))
+      System.exit(-1);
+
+    File input_dir = new File(batch.input_dir_name);
+    File correspondence_dir = (batch.correspondence_dir_name != null ? new File(batch.correspondence_dir_name)
+                                                                      : input_dir);
+    ArrayList<Pair> pairs = findPairs(input_dir, correspondence_dir);
+    if (pairs.isEmpty())
+    {
+      System.err.println("No image pairs in " + input_dir);
+      System.exit(-1);
+    }
+
+    File output_dir = new File(batch.output_dir_name);
+    if (!output_dir.isDirectory() && !output_dir.mkdirs())
+    {
+      System.err.println("Could not create output directory " + output_dir);
+      System.exit(-1);
+    }
+
+    int failed = batch.render(pairs);
+    if (failed > 0)
+      System.exit(-1);
+  }
+}
@@ -0,0 +1,94 @@
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Bilinear sampler reading the packed ARGB int[] backing store of a TYPE_INT_ARGB image. Fractional positions are
+ * quantized to 1/256 pixel and the four channels are interpolated two at a time (A,G and R,B packed as 0x00ff00ff), so a
+ * sample costs a few integer multiplies. Pixels are centered at integer coordinates, and positions outside the image
+ * take the nearest edge pixel. Results are truncated like sampleBilinear in src/morph.cpp and may be 1 below the exact
+ * value.
+ */
+public class BilinearSampler
+{
+  private static final int MASK = 0x00ff00ff;
+
+  final int[] pixels;
+  final int width, height;
+
+  /** Sample from an image, converted to TYPE_INT_ARGB first unless it already is. */
+  public BilinearSampler(BufferedImage image)
+  {
+    this(pixels(toARGB(image)), image.getWidth(), image.getHeight());
+  }
+
+  /** Sample from a w x h row-major ARGB array. */
+  public BilinearSampler(int[] pixels, int w, int h)
+  {
+    this.pixels = pixels;
+    this.width = w;
+    this.height = h;
+  }
+
+  /** Get the ARGB color at a real-valued position. */
+  public int sample(double x, double y)
+  {
+    // clamping the position is the same as clamping each tap
+    x = Math.max(0.0, Math.min(x, width - 1));
+    y = Math.max(0.0, Math.min(y, height - 1));
+
+    int xf = (int)(x * 256), yf = (int)(y * 256);
+    int col0 = xf >> 8, row0 = yf >> 8;
+    int fx = xf & 0xff, fy = yf & 0xff;
+    int col1 = Math.min(col0 + 1, width - 1);
+    int off0 = row0 * width, off1 = Math.min(row0 + 1, height - 1) * width;
+
+    return lerp2(pixels[off0 + col0], pixels[off0 + col1], pixels[off1 + col0], pixels[off1 + col1], fx, fy);
+  }
+
+  /** Interpolate four ARGB pixels with 8-bit fractional weights fx (columns) and fy (rows). */
+  static int lerp2(int p00, int p01, int p10, int p11, int fx, int fy)
+  {
+    int gx = 256 - fx, gy = 256 - fy;
+
+    // horizontal, then vertical, on the R,B and A,G channel pairs
+    int rb0 = (((p00 & MASK) * gx + (p01 & MASK) * fx) >>> 8) & MASK;
+    int rb1 = (((p10 & MASK) * gx + (p11 & MASK) * fx) >>> 8) & MASK;
+    int ag0 = ((((p00 >>> 8) & MASK) * gx + ((p01 >>> 8) & MASK) * fx) >>> 8) & MASK;
+    int ag1 = ((((p10 >>> 8) & MASK) * gx + ((p11 >>> 8) & MASK) * fx) >>> 8) & MASK;
+
+    int rb = ((rb0 * gy + rb1 * fy) >>> 8) & MASK;
+    int ag = ((ag0 * gy + ag1 * fy) >>> 8) & MASK;
+    return (ag << 8) | rb;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Image helpers
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Get an image as TYPE_INT_ARGB, returning it unchanged if it already is. */
+  public static BufferedImage toARGB(BufferedImage image)
+  {
+    if (image.getType() == BufferedImage.TYPE_INT_ARGB)
+      return image;
+
+    BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = argb.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return argb;
+  }
+
+  /** Get the backing array of a TYPE_INT_ARGB image. */
+  public static int[] pixels(BufferedImage argb)
+  {
+    return ((DataBufferInt)argb.getRaster().getDataBuffer()).getData();
+  }
+
+  /** Wrap a w x h row-major ARGB array in a TYPE_INT_ARGB image without copying it. */
+  public static BufferedImage wrap(int[] pixels, int w, int h)
+  {
+    DirectColorModel cm = (DirectColorModel)ColorModel.getRGBdefault();
+    WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, w * h), w, h, w, cm.getMasks(), null);
+    return new BufferedImage(cm, raster, false, null);
+  }
+}
@@ -0,0 +1,429 @@
+import java.io.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Binary correspondence files, for sets too large to parse as text quickly. The layout, all little-endian, is
+ *
+ *   bytes 0-3    magic "MCOR"
+ *   bytes 4-7    format version, int32 (1)
+ *   bytes 8-15   number of pairs n, int64
+ *   bytes 16-    8 * n float64: asx asy aex aey bsx bsy bex bey per pair, as on a text line
+ *
+ * so the pairs start 8-byte aligned and map straight onto the packed pairs of SegmentPlan.packPairs. Files are read
+ * through a memory-mapped FileChannel and copied into the packed array in one bulk transfer. Editor.loadCorrespondences
+ * and the morph binary accept either format, telling them apart by the magic.
+ *
+ * Run as a program it converts between the text and binary formats; Double.toString writes the shortest decimal that
+ * parses back to the same double, so conversion is lossless both ways, and every conversion is read back and checked.
+ * With -check it instead checks both formats and CorrespondenceParser: random pairs round trip through text to binary
+ * to text without changing a bit, generated numbers parse to the same double as Double.parseDouble, and malformed
+ * files are reported at the right path:line:column.
+ */
+public class CorrespondenceFile
+{
+  /** File name extension of binary correspondence files, next to .txt for text. */
+  public static final String BINARY_EXTENSION = ".segs";
+
+  /** Format version written, and the only one read. */
+  public static final int VERSION = 1;
+
+  // "MCOR" read as a little-endian int32
+  private static final int MAGIC = 0x524F434D;
+  private static final int HEADER_BYTES = 16;
+
+  ////////////////////////////////////////////////////////////////////////
+  // Binary format
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Does \a path start with the binary format's magic? False if it cannot be read. */
+  public static boolean isBinary(String path)
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+    {
+      ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      while (magic.hasRemaining() && channel.read(magic) >= 0) {}
+      return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  /** Read the packed pairs of a binary file, 8 doubles per pair. */
+  public static double[] readBinary(String path) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+    {
+      long size = channel.size();
+      if (size < HEADER_BYTES)
+        throw new IOException(path + ": too short for a correspondence header");
+
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      if (map.getInt(0) != MAGIC)
+        throw new IOException(path + ": not a binary correspondence file");
+      if (map.getInt(4) != VERSION)
+        throw new IOException(path + ": unsupported correspondence format version " + map.getInt(4));
+
+      long num_pairs = map.getLong(8);
+      if (num_pairs < 0 || num_pairs > (Integer.MAX_VALUE - 8) / 8 || size != HEADER_BYTES + 64 * num_pairs)
+        throw new IOException(path + ": " + num_pairs + " pairs do not match the file size of " + size + " bytes");
+
+      double[] pairs = new double[8 * (int)num_pairs];
+      map.position(HEADER_BYTES);
+      map.asDoubleBuffer().get(pairs);
+      return pairs;
+    }
+  }
+
+  /** Write \a num_pairs packed pairs as a binary file. */
+  public static void writeBinary(String path, double[] pairs, int num_pairs) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 64 * num_pairs).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putLong(num_pairs);
+    buffer.asDoubleBuffer().put(pairs, 0, 8 * num_pairs);
+    buffer.rewind();
+
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Either format
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Read the packed pairs of a file in either format. */
+  public static double[] readPairs(String path) throws IOException
+  {
+    return (isBinary(path) ? readBinary(path) : CorrespondenceParser.parse(path));
+  }
+
+  /** Write \a num_pairs packed pairs in the text format, a count line and then one pair per line. */
+  public static void writeText(String path, double[] pairs, int num_pairs) throws IOException
+  {
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+    writer.println(num_pairs);
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < num_pairs; ++i)
+    {
+      line.setLength(0);
+      for (int j = 0; j < 8; ++j)
+        line.append(j == 0 ? "" : " ").append(pairs[8 * i + j]);
+      writer.println(line);
+    }
+    writer.close();
+    if (writer.checkError())
+      throw new IOException("Could not write " + path);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Conversion tool
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Convert \a input to \a output in the given format and read the result back, throwing an IOException unless it
+   * holds the same bits. Returns the pairs converted.
+   */
+  static double[] convert(String input, String output, boolean binary_output) throws IOException
+  {
+    double[] pairs = readPairs(input);
+    if (binary_output)
+      writeBinary(output, pairs, pairs.length / 8);
+    else
+      writeText(output, pairs, pairs.length / 8);
+
+    // Read the result back: conversion must not change a single bit
+    double[] check = readPairs(output);
+    if (isBinary(output) != binary_output)
+      throw new IOException(output + " was not written in the " + (binary_output ? "binary" : "text") + " format");
+    for (int i = 0; i < pairs.length || i < check.length; ++i)
+    {
+      if (i >= pairs.length || i >= check.length
+       || Double.doubleToRawLongBits(pairs[i]) != Double.doubleToRawLongBits(check[i]))
+        throw new IOException("Conversion of " + input + " is not lossless at pair " + i / 8);
+    }
+    return pairs;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Self check
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Write \a num_pairs random pairs as text, convert them to binary and back to text, and check every step keeps every
+   * bit. The values cover random bit patterns of every magnitude, subnormals, signed zeros, infinities, integers and
+   * pixel coordinates.
+   */
+  static void checkRoundTrip(int num_pairs, long seed) throws IOException
+  {
+    Random random = new Random(seed);
+    double[] pairs = new double[8 * num_pairs];
+    for (int i = 0; i < pairs.length; ++i)
+    {
+      double value;
+      switch (random.nextInt(6))
+      {
+        case 0: value = Double.longBitsToDouble(random.nextLong() & 0x000FFFFFFFFFFFFFL); break;
+        case 1: value = random.nextInt(2000) - 1000; break;
+        case 2: value = random.nextDouble() * 1024; break;
+        case 3: value = new double[] { 0.0, -0.0, Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE,
+                                       Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY }[random.nextInt(7)]; break;
+        default: value = Double.longBitsToDouble(random.nextLong());
+      }
+      // NaN payloads have no text spelling
+      pairs[i] = (Double.isNaN(value) ? 0.5 : value);
+    }
+
+    Path dir = Files.createTempDirectory("correspondences");
+    try
+    {
+      String text = dir.resolve("pairs.txt").toString(), binary = dir.resolve("pairs" + BINARY_EXTENSION).toString();
+      String text_again = dir.resolve("pairs_again.txt").toString();
+      writeText(text, pairs, num_pairs);
+      double[] read = convert(text, binary, true);
+      for (int i = 0; i < pairs.length; ++i)
+        if (Double.doubleToRawLongBits(pairs[i]) != Double.doubleToRawLongBits(read[i]))
+          throw new IOException("Text of " + pairs[i] + " read back as " + read[i] + " in pair " + i / 8);
+      convert(binary, text_again, false);
+      convert(text_again, binary, true);
+    }
+    finally
+    {
+      for (File file : dir.toFile().listFiles())
+        file.delete();
+      dir.toFile().delete();
+    }
+  }
+
+  /**
+   * Parse \a count generated numbers with CorrespondenceParser and check each against Double.parseDouble: random
+   * doubles, random digit strings of 1 to 25 significant digits over the whole exponent range, subnormals, the exact
+   * expansions of doubles, halfway points between neighbouring doubles in both long and short spellings, and fixed
+   * boundary cases.
+   */
+  static void checkNumbers(int count, long seed) throws IOException
+  {
+    Random random = new Random(seed);
+    List<String> numbers = new ArrayList<String>(Arrays.asList(
+      "0", "-0", "0.0", ".5", "5.", "+1.5", "1E5", "00000000000000000000001.5", "1.00000000000000000000000000000e5",
+      "1e-400", "1e400", "NaN", "Infinity", "-Infinity", "0.1", "4.9e-324", "2.4703282292062327e-324",
+      "2.4703282292062328e-324", "2.2250738585072011e-308", "2.2250738585072012e-308", "1.7976931348623157e308",
+      "1.7976931348623158e308", "1.7976931348623159e308", "9007199254740993", "9007199254740995",
+      "9223372036854775807", "9223372036854775808", "18446744073709551615", "123456789012345678901234567890",
+      "1.00000000000000011102230246251565404236316680908203125",
+      "1.000000000000000111022302462515654042363166809082031251"));
+    while (numbers.size() < count)
+    {
+      String number;
+      switch (random.nextInt(7))
+      {
+        case 0: number = Double.toString(positiveDouble(random)); break;
+        case 1:
+        {
+          // 1 to 25 significant digits with a point anywhere and any exponent
+          StringBuilder digits = new StringBuilder();
+          int num_digits = 1 + random.nextInt(25);
+          for (int i = 0; i < num_digits; ++i)
+            digits.append((char)('0' + random.nextInt(10)));
+          digits.insert(random.nextInt(num_digits + 1), '.');
+          number = digits + "e" + (random.nextInt(660) - 345);
+          break;
+        }
+        case 2: number = Double.toString(Double.longBitsToDouble(random.nextLong() & 0x000FFFFFFFFFFFFFL)); break;
+        case 3: number = new BigDecimal(positiveDouble(random)).toString(); break;
+        case 4:
+        {
+          // Exactly halfway between a double and the next, in full
+          double low = positiveDouble(random);
+          number = new BigDecimal(low).add(new BigDecimal(Math.nextUp(low))).divide(BigDecimal.valueOf(2)).toString();
+          break;
+        }
+        case 5:
+        {
+          // Halfway between integers of 2^53 to 2^63, at most 19 digits, spelled with a random decimal exponent
+          int power = 53 + random.nextInt(10);
+          long mantissa = (1L << 52) | (random.nextLong() & ((1L << 52) - 1));
+          BigDecimal half = BigDecimal.valueOf((mantissa << (power - 52)) + (1L << (power - 53)));
+          half = half.stripTrailingZeros().scaleByPowerOfTen(-random.nextInt(5));
+          number = (random.nextBoolean() ? half.toString() : half.toPlainString() + "e0");
+          break;
+        }
+        default:
+        {
+          // 19 to 40 significant digits
+          StringBuilder digits = new StringBuilder().append((char)('1' + random.nextInt(9)));
+          int num_digits = 19 + random.nextInt(22);
+          for (int i = 1; i < num_digits; ++i)
+            digits.append((char)('0' + random.nextInt(10)));
+          number = digits + "e" + (random.nextInt(80) - 40);
+        }
+      }
+      numbers.add(random.nextInt(4) == 0 ? "-" + number : number);
+    }
+
+    Path file = Files.createTempFile("numbers", ".txt");
+    try
+    {
+      int num_pairs = (numbers.size() + 7) / 8;
+      StringBuilder text = new StringBuilder().append(num_pairs).append('\n');
+      for (int i = 0; i < 8 * num_pairs; ++i)
+        text.append(i < numbers.size() ? numbers.get(i) : "0").append(i % 8 == 7 ? '\n' : ' ');
+      Files.write(file, text.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+      double[] parsed = CorrespondenceParser.parse(file.toString());
+      for (int i = 0; i < numbers.size(); ++i)
+      {
+        double expected = Double.parseDouble(numbers.get(i));
+        if (Double.doubleToRawLongBits(parsed[i]) != Double.doubleToRawLongBits(expected))
+          throw new IOException(numbers.get(i) + " parsed as " + parsed[i] + ", Double.parseDouble gives " + expected);
+      }
+    }
+    finally
+    {
+      Files.delete(file);
+    }
+  }
+
+  // A random positive finite double of any magnitude, below the largest so it has a next
+  private static double positiveDouble(Random random)
+  {
+    double value;
+    do
+      value = Double.longBitsToDouble(random.nextLong() >>> 1);
+    while (Double.isNaN(value) || value >= Double.MAX_VALUE);
+    return value;
+  }
+
+  /** Parse malformed files and check each error names the path, line and column of the fault. */
+  static void checkErrors() throws IOException
+  {
+    // File contents and the line:column each must be reported at
+    String[][] cases = {
+      { "", "1:1" },
+      { "x\n", "1:1" },
+      { "\n\n  -1\n", "3:3" },
+      { "2\n1 2 3 4 5 6 7 8\n", "3:1" },
+      { "1\n1 2 3 x 5 6 7 8\n", "2:7" },
+      { "1\n1 2 3 4.5.6 6 7 8 9\n", "2:10" },
+      { "1\n1 2 3 4 5e 6 7 8\n", "2:11" },
+      { "1\r\n1 2\t3 4 5 6 7 8q\r\n", "2:16" },
+      { "1\n1 2 3 4\n  5 6 7 -\n", "3:9" } };
+
+    Path file = Files.createTempFile("malformed", ".txt");
+    try
+    {
+      for (String[] c : cases)
+      {
+        Files.write(file, c[0].getBytes(StandardCharsets.ISO_8859_1));
+        String message = null;
+        try
+        {
+          CorrespondenceParser.parse(file.toString());
+        }
+        catch (IOException e)
+        {
+          message = e.getMessage();
+        }
+        if (message == null || !message.startsWith(file + ":" + c[1] + ": "))
+          throw new IOException("Malformed input " + c[0].replace("\n", "\\n") + " reported as " + message
+                              + " instead of at " + c[1]);
+      }
+    }
+    finally
+    {
+      Files.delete(file);
+    }
+  }
+
+  public static void main(String[] args)
+  {
+    String input = null, output = null, format = null;
+    boolean print_verbose = false;
+    int check_pairs = 0;
+    long seed = System.nanoTime();
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (args[i].equals("-v"))
+        print_verbose = true;
+      else if (args[i].equals("-check"))
+        check_pairs = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-seed"))
+        seed = Long.parseLong(args[++i]);
+      else if (args[i].equals("-binary") || args[i].equals("-text"))
+        format = args[i].substring(1);
+      else if (input == null)
+        input = args[i];
+      else if (output == null)
+        output = args[i];
+      else
+      {
+        System.err.println("Invalid program argument: " + args[i]);
+        System.exit(-1);
+      }
+    }
+
+    if (check_pairs > 0)
+    {
+      try
+      {
+        checkRoundTrip(check_pairs, seed);
+        checkNumbers(8 * check_pairs, seed);
+        checkErrors();
+      }
+      catch (IOException e)
+      {
+        System.err.println("Check failed with seed " + seed + ": " + e.getMessage());
+        System.exit(-1);
+      }
+      if (print_verbose)
+        System.out.println("Round tripped " + check_pairs + " pairs through text and binary, parsed " + 8 * check_pairs
+                         + " numbers the same as Double.parseDouble, and located all malformed input");
+      return;
+    }
+
+    if (input == null || output == null)
+    {
+      System.err.println("Usage: CorrespondenceFile input output [-binary|-text] [-v]");
+      System.err.println("       CorrespondenceFile -check pairs [-seed n] [-v]");
+      System.err.println("  converts to the other format than the input's unless -binary or -text is given");
+      System.exit(-1);
+    }
+
+    boolean binary_input = isBinary(input);
+    boolean binary_output = (format != null ? format.equals("binary") : !binary_input);
+
+    long start = System.nanoTime();
+    double[] pairs;
+    try
+    {
+      pairs = convert(input, output, binary_output);
+    }
+    catch (NoSuchFileException e)
+    {
+      System.err.println("No such file: " + e.getMessage());
+      System.exit(-1);
+      return;
+    }
+    catch (IOException e)
+    {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+      return;
+    }
+    long convert_ns = System.nanoTime() - start;
+
+    if (print_verbose)
+      System.out.println("Converted " + pairs.length / 8 + " pairs from " + (binary_input ? "binary" : "text") + " to "
+                       + (binary_output ? "binary" : "text") + " and checked in " + convert_ns / 1000000 + " ms");
+  }
+}
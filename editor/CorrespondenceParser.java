@@ -0,0 +1,324 @@
+import java.io.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+/**
+ * Parser of the text correspondence format, a pair count followed by 8 numbers per pair, straight from the bytes of a
+ * memory-mapped file into the packed pairs of SegmentPlan.packPairs. Tokens are separated by any whitespace, as with
+ * the Scanner it replaces, and anything after the last pair is ignored.
+ *
+ * Numbers are converted without Strings or other allocation: up to 19 significant digits are gathered into a long and
+ * scaled by the decimal exponent, exactly when both fit a double (Clinger's fast path) and otherwise with the
+ * Eisel-Lemire algorithm over a table of 128-bit powers of five. Either way the result is the correctly rounded double,
+ * the same as Double.parseDouble's; the rare inputs neither handles (more than 19 significant digits, subnormals,
+ * overflow) fall back to Double.parseDouble. Malformed input is reported as an IOException naming path:line:column.
+ */
+public class CorrespondenceParser
+{
+  // Range of decimal exponents of the power of five table, beyond which a number is 0 or infinite
+  private static final int MIN_POWER = -342;
+  private static final int MAX_POWER = 308;
+
+  // Truncated 128-bit powers of five, normalized so the top bit is set: high word at 2i, low word at 2i + 1
+  private static final long[] POWERS_OF_FIVE = powersOfFive();
+
+  // Powers of ten that are exact doubles
+  private static final double[] EXACT_POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+    1e21, 1e22 };
+
+  private final String path;
+  private final ByteBuffer in;
+  private final int end;
+  private int pos = 0;
+
+  // Position of the current line, for error messages
+  private int line = 1, line_start = 0;
+
+  private CorrespondenceParser(String path, ByteBuffer in)
+  {
+    this.path = path;
+    this.in = in;
+    this.end = in.limit();
+  }
+
+  /** Parse the text correspondence file at \a path into packed pairs, 8 doubles per pair. */
+  public static double[] parse(String path) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+    {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException(path + ": too large for a text correspondence file, convert it with CorrespondenceFile");
+      return new CorrespondenceParser(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).pairs();
+    }
+  }
+
+  private double[] pairs() throws IOException
+  {
+    skipWhitespace();
+    int count_line = line, count_column = column();
+    long num_pairs = parseCount();
+    if (num_pairs > (Integer.MAX_VALUE - 8) / 8)
+      throw new IOException(path + ":" + count_line + ":" + count_column + ": too many pairs, " + num_pairs);
+
+    double[] pairs = new double[8 * (int)num_pairs];
+    for (int i = 0; i < pairs.length; ++i)
+    {
+      skipWhitespace();
+      if (pos >= end)
+        throw error("expected " + num_pairs + " pairs, the file ends in pair " + (i / 8 + 1));
+      pairs[i] = parseDouble();
+    }
+    return pairs;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Tokens
+  ////////////////////////////////////////////////////////////////////////
+
+  private void skipWhitespace()
+  {
+    for (; pos < end; ++pos)
+    {
+      byte c = in.get(pos);
+      if (c == '\n')
+      {
+        line++;
+        line_start = pos + 1;
+      }
+      else if (c != ' ' && c != '\t' && c != '\r' && c != '\f')
+        break;
+    }
+  }
+
+  private static boolean isDelimiter(byte c)
+  {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f';
+  }
+
+  private long parseCount() throws IOException
+  {
+    if (pos >= end)
+      throw error("expected the number of pairs, the file is empty");
+
+    long count = 0;
+    int start = pos;
+    for (; pos < end && !isDelimiter(in.get(pos)); ++pos)
+    {
+      byte c = in.get(pos);
+      if (c < '0' || c > '9' || count > Integer.MAX_VALUE)
+      {
+        pos = start;
+        throw error("expected the number of pairs");
+      }
+      count = count * 10 + (c - '0');
+    }
+    return count;
+  }
+
+  /** Parse the number at pos, leaving pos after it. */
+  private double parseDouble() throws IOException
+  {
+    int start = pos;
+    boolean negative = false;
+    byte c = in.get(pos);
+    if (c == '-' || c == '+')
+    {
+      negative = (c == '-');
+      pos++;
+    }
+
+    // Double.toString's spellings of the special values
+    double special = (matches("NaN") ? Double.NaN : matches("Infinity") ? Double.POSITIVE_INFINITY : 0.0);
+    if (special != 0.0)
+    {
+      expectDelimiter();
+      return (negative ? -special : special);
+    }
+
+    // Significant digits, at most 19 of them, and the decimal exponent of the last one kept
+    long digits = 0;
+    int num_digits = 0, exponent = 0;
+    boolean any_digit = false, truncated = false, point = false;
+    for (; pos < end; ++pos)
+    {
+      c = in.get(pos);
+      if (c >= '0' && c <= '9')
+      {
+        any_digit = true;
+        if (num_digits < 19)
+        {
+          if (digits != 0 || c != '0')
+          {
+            digits = digits * 10 + (c - '0');
+            num_digits++;
+          }
+          if (point)
+            exponent--;
+        }
+        else
+        {
+          truncated |= (c != '0');
+          if (!point)
+            exponent++;
+        }
+      }
+      else if (c == '.' && !point)
+        point = true;
+      else
+        break;
+    }
+    if (!any_digit)
+    {
+      pos = start;
+      throw error("expected a number");
+    }
+
+    if (pos < end && (in.get(pos) == 'e' || in.get(pos) == 'E'))
+    {
+      pos++;
+      boolean negative_exponent = false;
+      if (pos < end && (in.get(pos) == '-' || in.get(pos) == '+'))
+        negative_exponent = (in.get(pos++) == '-');
+
+      int exponent_start = pos, value = 0;
+      for (; pos < end && in.get(pos) >= '0' && in.get(pos) <= '9'; ++pos)
+        value = Math.min(value * 10 + (in.get(pos) - '0'), 100000);
+      if (pos == exponent_start)
+        throw error("expected the exponent of a number");
+      exponent += (negative_exponent ? -value : value);
+    }
+
+    expectDelimiter();
+
+    double value = (truncated ? Double.NaN : toDouble(digits, exponent));
+    if (Double.isNaN(value))
+      value = fallback(start);
+    return (negative ? -value : value);
+  }
+
+  private void expectDelimiter() throws IOException
+  {
+    if (pos < end && !isDelimiter(in.get(pos)))
+      throw error("unexpected character '" + (char)(in.get(pos) & 0xff) + "' in a number");
+  }
+
+  private boolean matches(String word)
+  {
+    if (end - pos < word.length())
+      return false;
+    for (int i = 0; i < word.length(); ++i)
+      if (in.get(pos + i) != word.charAt(i))
+        return false;
+    pos += word.length();
+    return true;
+  }
+
+  /** Parse the number from \a start to pos with Double.parseDouble, for the cases toDouble leaves. */
+  private double fallback(int start) throws IOException
+  {
+    byte[] bytes = new byte[pos - start];
+    for (int i = 0; i < bytes.length; ++i)
+      bytes[i] = in.get(start + i);
+    return Math.abs(Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1)));
+  }
+
+  private IOException error(String message)
+  {
+    return new IOException(path + ":" + line + ":" + column() + ": " + message);
+  }
+
+  // Byte column of pos, from 1
+  private int column()
+  {
+    return pos - line_start + 1;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Conversion
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * The double nearest to digits * 10^exponent, for \a digits of at most 19 decimal digits taken as unsigned, or NaN if
+   * it cannot be decided here.
+   */
+  static double toDouble(long digits, int exponent)
+  {
+    if (digits == 0 || exponent < MIN_POWER)
+      return 0.0;
+    if (exponent > MAX_POWER)
+      return Double.NaN;
+
+    // Both operands exact, so the one rounding of the multiplication or division is the right one
+    if (digits > 0 && digits <= (1L << 53) && exponent >= -22 && exponent <= 22)
+      return (exponent >= 0 ? digits * EXACT_POWERS_OF_TEN[exponent] : digits / EXACT_POWERS_OF_TEN[-exponent]);
+
+    // Eisel-Lemire: the top bits of the normalized digits times the 128-bit power of five give the mantissa
+    int lz = Long.numberOfLeadingZeros(digits);
+    long w = digits << lz;
+    int index = 2 * (exponent - MIN_POWER);
+    long high = Math.unsignedMultiplyHigh(w, POWERS_OF_FIVE[index]);
+    long low = w * POWERS_OF_FIVE[index];
+    if ((high & 0x1FF) == 0x1FF)
+    {
+      long second = Math.unsignedMultiplyHigh(w, POWERS_OF_FIVE[index + 1]);
+      low += second;
+      if (Long.compareUnsigned(low, second) < 0)
+        high++;
+    }
+
+    int upper_bit = (int)(high >>> 63);
+    long mantissa = high >>> (upper_bit + 9);
+    int power2 = ((217706 * exponent) >> 16) + 63 + upper_bit - lz + 1023;
+    if (power2 <= 0)
+      return Double.NaN;
+
+    // A product exactly halfway between two doubles rounds to even
+    if (Long.compareUnsigned(low, 1) <= 0 && exponent >= -4 && exponent <= 23 && (mantissa & 3) == 1
+     && (mantissa << (upper_bit + 9)) == high)
+      mantissa &= ~1L;
+
+    mantissa += (mantissa & 1);
+    mantissa >>>= 1;
+    if (mantissa >= (2L << 52))
+    {
+      mantissa = (1L << 52);
+      power2++;
+    }
+    if (power2 >= 0x7FF)
+      return Double.NaN;
+
+    return Double.longBitsToDouble((mantissa & ~(1L << 52)) | ((long)power2 << 52));
+  }
+
+  private static long[] powersOfFive()
+  {
+    long[] table = new long[2 * (MAX_POWER - MIN_POWER + 1)];
+    BigInteger five = BigInteger.valueOf(5);
+    for (int q = MIN_POWER; q <= MAX_POWER; ++q)
+    {
+      BigInteger power;
+      if (q < 0)
+      {
+        // 2^b / 5^-q rounded up, with b large enough to keep 128 significant bits
+        BigInteger divisor = five.pow(-q);
+        int b = (q >= -27 ? divisor.bitLength() + 127 : 2 * divisor.bitLength() + 128);
+        power = BigInteger.ONE.shiftLeft(b).divide(divisor).add(BigInteger.ONE);
+      }
+      else
+        power = five.pow(q);
+
+      // Normalize to exactly 128 bits, truncating
+      int shift = power.bitLength() - 128;
+      power = (shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift));
+
+      int i = 2 * (q - MIN_POWER);
+      table[i] = power.shiftRight(64).longValue();
+      table[i + 1] = power.longValue();
+    }
+    return table;
+  }
+}
@@ -0,0 +1,23 @@
+/**
+ * Evaluates the Beier-Neely inverse map of a compiled segment plan: for each pixel of a run of columns in one row, the
+ * position in the source image it is sampled from.
+ */
+public interface DistortKernel
+{
+  /**
+   * Write the source positions of pixels (col0 .. col1-1, row) to map_x[k], map_y[k] with k = col - col0. The plan must
+   * hold at least one segment.
+   */
+  void mapRow(SegmentPlan plan, double a, double b, int row, int col0, int col1, double[] map_x, double[] map_y);
+
+  /**
+   * Map the same pixels through both distortions of a morph, whose plans share their interpolated segments (compiled
+   * from the same pairs with reverse = false, t and reverse = true, 1 - t).
+   */
+  default void mapRowPair(SegmentPlan plan1, SegmentPlan plan2, double a, double b, int row, int col0, int col1,
+                          double[] map1_x, double[] map1_y, double[] map2_x, double[] map2_y)
+  {
+    mapRow(plan1, a, b, row, col0, col1, map1_x, map1_y);
+    mapRow(plan2, a, b, row, col0, col1, map2_x, map2_y);
+  }
+}
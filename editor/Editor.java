@@ -4,6 +4,7 @@ import java.awt.event.*;
 import java.awt.geom.*;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.file.NoSuchFileException;
 import javax.imageio.*;
 import javax.swing.*;
 
@@ -20,6 +21,16 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
   private String input_correspondence_name;
   private String output_correspondence_name;
   private boolean print_verbose = false;
+  private double preview_time = -1;
+  private String preview_backend = "scalar";
+  private double preview_tolerance = -1;
+  private double cull_epsilon = -1;
+  private int tile_order;
+  private boolean tiled_source;
+  private double tree_theta = -1;
+  private boolean fast_pow = false;
+  private long cache_budget = 256L << 20;
+  private boolean cache_half = false;
 
   // Data variables
   private BufferedImage source_image;
@@ -27,6 +38,13 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
   private Vector<Line2D.Double> segments = new Vector<Line2D.Double>();
   private Point current_start, current_end;
 
+  // Morph preview
+  private MorphEngine engine = new MorphEngine();
+  private IncrementalMorph incremental;
+  private GeometryCache geometry_cache;
+  private JLabel preview_label;
+  private JSlider slider_a, slider_b, slider_p;
+
   ////////////////////////////////////////////////////////////////////////
   // Constructor
   ////////////////////////////////////////////////////////////////////////
@@ -36,6 +54,44 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
     // Parse program arguments
     if (!parseArgs(args)) System.exit(-1);
 
+    // Preview kernel
+    // the native backend renders whole frames, and leaves the Java kernel unused
+    boolean native_backend = preview_backend.equals("native");
+    DistortKernel kernel = MorphEngine.createKernel(native_backend ? "scalar" : preview_backend, fast_pow);
+    if (native_backend)
+    {
+      String library = System.getProperty("morph.library", NativeMorph.DEFAULT_LIBRARY);
+      try { engine.setNativeMorph(new NativeMorph(library)); }
+      catch (IllegalArgumentException e)
+      {
+        System.err.println("Could not load native morph library " + library + ": " + e.getMessage());
+        System.exit(-1);
+      }
+      catch (LinkageError e)
+      {
+        System.err.println("-backend native requires --enable-preview on JDK 21 (java --enable-preview Editor ...)");
+        System.exit(-1);
+      }
+    }
+    if (kernel == null)
+    {
+      System.err.println("Unknown preview backend: " + preview_backend);
+      System.exit(-1);
+    }
+    if (fast_pow && (native_backend || tree_theta >= 0))
+      System.err.println("-fast_pow applies to the scalar and specialized kernels only, using the exact power");
+    engine.setKernel(tree_theta >= 0 ? new HierarchicalDistortKernel(tree_theta) : kernel);
+    if (preview_tolerance >= 0)
+    {
+      AdaptiveGrid grid = new AdaptiveGrid(8, preview_tolerance);
+      grid.setMeasureDeviation(print_verbose);
+      engine.setAdaptiveGrid(grid);
+    }
+    if (cull_epsilon >= 0)
+      engine.setSegmentCuller(new SegmentCuller(32, cull_epsilon));
+    engine.setTileOrder(tile_order);
+    engine.setTiledSource(tiled_source);
+
     // Read source image
     source_image = loadImage(input_source_image_name);
     if (source_image == null) System.exit(-1);
@@ -60,7 +116,7 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
   // Input/Output Functions
   ////////////////////////////////////////////////////////////////////////
 
-  private static BufferedImage loadImage(String path)
+  static BufferedImage loadImage(String path)
   {
     BufferedImage img = null;
     if (path != null)
@@ -68,40 +124,26 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
       try { img = ImageIO.read(new File(path)); }
       catch (Exception e) {}
     }
-    return img;
+
+    // Packed ARGB, so the morph preview can sample the backing array directly
+    return (img == null ? null : BilinearSampler.toARGB(img));
   }
 
-  private boolean loadCorrespondences(String path, Image source_image, Image target_image, Vector<Line2D.Double> segments)
+  static boolean loadCorrespondences(String path, Image source_image, Image target_image, Vector<Line2D.Double> segments)
   {
     segments.clear();
     if (path != null)
     {
-      Scanner in = null;
-      try { in = new Scanner(new FileReader(path)); }
-      catch (Exception e) { return false; }
+      // Either format, straight into packed pairs; a malformed text file is reported by line and column
+      double[] pairs;
+      try { pairs = CorrespondenceFile.readPairs(path); }
+      catch (NoSuchFileException e) { return false; }
+      catch (IOException e) { System.err.println(e.getMessage()); return false; }
 
-      try
-      {
-        int num_segs = in.nextInt();
-        for (int i = 0; i < num_segs; ++i)
-        {
-          double asx = in.nextDouble();
-          double asy = in.nextDouble();
-          double aex = in.nextDouble();
-          double aey = in.nextDouble();
-
-          double bsx = in.nextDouble();
-          double bsy = in.nextDouble();
-          double bex = in.nextDouble();
-          double bey = in.nextDouble();
-
-          segments.add(new Line2D.Double(asx, asy, aex, aey));
-          segments.add(new Line2D.Double(bsx, bsy, bex, bey));
-        }
-      }
-      catch (Exception e)
+      for (int i = 0; i < pairs.length; i += 8)
       {
-        return false;
+        segments.add(new Line2D.Double(pairs[i], pairs[i + 1], pairs[i + 2], pairs[i + 3]));
+        segments.add(new Line2D.Double(pairs[i + 4], pairs[i + 5], pairs[i + 6], pairs[i + 7]));
       }
     }
 
@@ -161,7 +203,17 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
       segments.add(new Line2D.Double(new Point2D.Double(current_start.x - xoffset, current_start.y),
                                      new Point2D.Double(current_end.x - xoffset,   current_end.y)));
       if (segments.size() % 2 == 0)
+      {
         saveCorrespondences(output_correspondence_name, segments);
+        if (incremental != null)
+          incremental.addPair(pairAt(segments.size() / 2 - 1));
+        updateEditPreview(null);
+      }
+    }
+    else if (incremental != null && segments.size() % 2 == 1)
+    {
+      // drop the pair previewed while dragging
+      updateEditPreview(null);
     }
     current_start = null;
   }
@@ -169,6 +221,17 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
   public void mouseDragged(MouseEvent e)
   {
     current_end = e.getPoint();
+
+    // preview the pair being completed while its target segment is dragged
+    if (incremental != null && current_start != null && segments.size() % 2 == 1)
+    {
+      int xoffset = source_image.getWidth() + HSEP;
+      Line2D.Double src = segments.lastElement();
+      updateEditPreview(new double[] { src.x1, src.y1, src.x2, src.y2,
+                                       current_start.x - xoffset, current_start.y,
+                                       current_end.x - xoffset, current_end.y });
+    }
+
     repaint();
   }
 
@@ -226,6 +289,155 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
     }
   }
 
+  ////////////////////////////////////////////////////////////////////////
+  // Morph preview
+  ////////////////////////////////////////////////////////////////////////
+
+  private boolean hasPreview()
+  {
+    return preview_time >= 0;
+  }
+
+  /** Get pair \a i of the segments as 8 doubles (asx asy aex aey bsx bsy bex bey). */
+  private double[] pairAt(int i)
+  {
+    Line2D.Double seg1 = segments.elementAt(2 * i);
+    Line2D.Double seg2 = segments.elementAt(2 * i + 1);
+    return new double[] { seg1.x1, seg1.y1, seg1.x2, seg1.y2, seg2.x1, seg2.y1, seg2.x2, seg2.y2 };
+  }
+
+  /**
+   * Set up the incremental preview from the current segments, if it renders what the engine would, and render the
+   * preview in full. IncrementalMorph evaluates the scalar formula for every segment at every pixel, so any other
+   * backend, the adaptive grid, culling and the hierarchical kernel re-render through the engine instead.
+   */
+  private void startPreview()
+  {
+    boolean exact_engine = (preview_backend.equals("scalar") || preview_backend.equals("specialized"))
+                        && tree_theta < 0 && preview_tolerance < 0 && cull_epsilon < 0;
+    if (exact_engine)
+    {
+      incremental = new IncrementalMorph(engine, source_image, target_image, preview_time, fast_pow);
+      for (int i = 0; i < segments.size() / 2; ++i)
+        incremental.addPair(pairAt(i));
+    }
+
+    updatePreview();
+  }
+
+  /**
+   * Re-render after an edit, with \a pending as the pair being dragged or null for none. Without the incremental
+   * preview only completed pairs are rendered, since a full morph per drag event is too slow.
+   */
+  private void updateEditPreview(double[] pending)
+  {
+    if (preview_label == null)
+      return;
+    geometry_cache = null;
+    if (incremental == null)
+    {
+      if (pending == null)
+        updatePreview();
+      return;
+    }
+
+    long start = System.nanoTime();
+    incremental.setPending(pending);
+    preview_label.setIcon(new ImageIcon(incremental.render()));
+    if (print_verbose)
+      System.out.println("Updated preview in " + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
+  /** Re-render with the a, b, p sliders from the geometry cache; commit the parameters once a slider is released. */
+  private void updateParameterPreview(boolean adjusting)
+  {
+    double a = slider_a.getValue() / 100.0;
+    double b = slider_b.getValue() / 100.0;
+    double p = slider_p.getValue() / 100.0;
+
+    long start = System.nanoTime();
+    if (geometry_cache == null)
+    {
+      int w = source_image.getWidth(), h = source_image.getHeight();
+      int guard1 = PaddedSampler.guardFor(SegmentPlan.compile(segments, false, preview_time, engine.p), w, h);
+      int guard2 = PaddedSampler.guardFor(SegmentPlan.compile(segments, true, 1 - preview_time, engine.p), w, h);
+      geometry_cache = new GeometryCache(engine, engine.createSampler(source_image, guard1),
+                                         engine.createSampler(target_image, guard2), SegmentPlan.packPairs(segments),
+                                         segments.size() / 2, preview_time, cache_budget, cache_half);
+      if (print_verbose)
+        System.out.println("Built geometry cache (" + (int)(100 * geometry_cache.cachedFraction()) + "% of rows) in "
+                         + (System.nanoTime() - start) / 1000000 + " ms");
+      start = System.nanoTime();
+    }
+
+    int[] pixels = geometry_cache.render(a, b, p);
+    preview_label.setIcon(new ImageIcon(BilinearSampler.wrap(pixels, source_image.getWidth(), source_image.getHeight())));
+    if (print_verbose)
+      System.out.println("Rendered a = " + a + ", b = " + b + ", p = " + p + " in " + (System.nanoTime() - start) / 1000000
+                       + " ms");
+
+    // later edits use the new parameters
+    if (!adjusting)
+    {
+      engine.setParameters(a, b, p);
+      if (incremental != null)
+        incremental.rebuild();
+    }
+  }
+
+  private JPanel createParameterSliders()
+  {
+    slider_a = new JSlider(1, 200, (int)Math.round(100 * engine.a));
+    slider_b = new JSlider(0, 300, (int)Math.round(100 * engine.b));
+    slider_p = new JSlider(0, 100, (int)Math.round(100 * engine.p));
+
+    JPanel panel = new JPanel(new GridLayout(3, 2));
+    String[] names = { "a (x100)", "b (x100)", "p (x100)" };
+    JSlider[] sliders = { slider_a, slider_b, slider_p };
+    for (int i = 0; i < sliders.length; ++i)
+    {
+      final JSlider slider = sliders[i];
+      slider.addChangeListener(new javax.swing.event.ChangeListener() {
+        public void stateChanged(javax.swing.event.ChangeEvent e)
+        {
+          updateParameterPreview(slider.getValueIsAdjusting());
+        }
+      });
+      panel.add(new JLabel(names[i]));
+      panel.add(slider);
+    }
+
+    return panel;
+  }
+
+  private void updatePreview()
+  {
+    if (!hasPreview() || preview_label == null)
+      return;
+
+    AdaptiveGrid grid = engine.getAdaptiveGrid();
+    if (grid != null)
+      grid.resetStats();
+    SegmentCuller culler = engine.getSegmentCuller();
+    if (culler != null)
+      culler.resetStats();
+
+    long start = System.nanoTime();
+    BufferedImage preview = engine.morph(source_image, target_image, segments, preview_time);
+    if (print_verbose)
+    {
+      System.out.println("Rendered preview at t = " + preview_time + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+      if (grid != null)
+        System.out.println("Adaptive grid: " + grid.evaluations() + " evaluations, max deviation from exact "
+                         + grid.maxMeasuredDeviation() + " px");
+      else if (culler != null)
+        System.out.println("Culling: " + culler.meanCandidates() + " segments per tile, dropped weight at most "
+                         + culler.maxDroppedWeight());
+    }
+
+    preview_label.setIcon(new ImageIcon(preview));
+  }
+
   ////////////////////////////////////////////////////////////////////////
   // Program argument parsing
   ////////////////////////////////////////////////////////////////////////
@@ -239,6 +451,26 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
         print_verbose = true;
       else if (args[i].equals("-input_correspondences"))
         input_correspondence_name = args[++i];
+      else if (args[i].equals("-preview"))
+        preview_time = Math.max(0.0, Math.min(1.0, Double.parseDouble(args[++i])));
+      else if (args[i].equals("-backend"))
+        preview_backend = args[++i];
+      else if (args[i].equals("-adaptive"))
+        preview_tolerance = Double.parseDouble(args[++i]);
+      else if (args[i].equals("-fast_pow"))
+        fast_pow = true;
+      else if (args[i].equals("-hierarchical"))
+        tree_theta = Double.parseDouble(args[++i]);
+      else if (args[i].equals("-cull"))
+        cull_epsilon = Double.parseDouble(args[++i]);
+      else if (args[i].equals("-tile_order"))
+        tile_order = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-tiled_source"))
+        tiled_source = true;
+      else if (args[i].equals("-cache_mb"))
+        cache_budget = Long.parseLong(args[++i]) << 20;
+      else if (args[i].equals("-cache_half"))
+        cache_half = true;
       else
       {
         switch (current_positional)
@@ -254,7 +486,17 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
 
     if (input_source_image_name == null || input_target_image_name == null || output_correspondence_name == null)
       System.err.println("Usage: Editor input_source_image input_target_image output_correspondence_file"
-                                    + " [-input_correspondences filename]");
+                                    + " [-input_correspondences filename] [-preview t]"
+                                    + " [-backend scalar|simd|specialized|native] [-fast_pow] [-adaptive tolerance_px]"
+                                    + " [-hierarchical theta] [-cull epsilon] [-tile_order n] [-tiled_source]"
+                                    + " [-cache_mb n] [-cache_half]");
+
+    // the tree already stands in for far segments, and a tile's subset would need a tree of its own
+    if (tree_theta >= 0 && cull_epsilon >= 0)
+    {
+      System.err.println("-hierarchical and -cull cannot be combined");
+      return false;
+    }
 
     // Return OK status
     return true;
@@ -281,5 +523,25 @@ public class Editor extends JPanel implements MouseListener, MouseMotionListener
     f.setLocation(0, 0);
     f.setResizable(false);
     f.setVisible(true);
+
+    // Morph preview, needs both images at the same dimensions
+    if (editor.hasPreview())
+    {
+      if (editor.source_image.getWidth() != editor.target_image.getWidth()
+       || editor.source_image.getHeight() != editor.target_image.getHeight())
+      {
+        System.err.println("Preview needs both images to be the same dimensions");
+        return;
+      }
+
+      JFrame pf = new JFrame("Morph Preview");
+      editor.preview_label = new JLabel();
+      pf.add(editor.preview_label, BorderLayout.CENTER);
+      pf.add(editor.createParameterSliders(), BorderLayout.SOUTH);
+      pf.setSize(editor.source_image.getWidth() + HPAD, editor.source_image.getHeight() + VPAD + 3 * VPAD);
+      pf.setLocation(width + HPAD, 0);
+      pf.setVisible(true);
+      editor.startPreview();
+    }
   }
 }
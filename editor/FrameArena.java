@@ -0,0 +1,41 @@
+import java.lang.foreign.*;
+
+/**
+ * Allocates OffHeapFrames outside the Java heap, so that large frames of long sequences do not add to GC pauses. A
+ * confined arena's frames may only be touched by the thread that opened it; a shared arena's by any thread, as when frames
+ * are handed between pipeline stages. Closing the arena frees all of its frames at once.
+ *
+ * This class and OffHeapFrame are the only users of the Foreign Function & Memory API, which is a preview API in JDK 21:
+ * compile them with --enable-preview --release 21 there and run with --enable-preview. The rest of the engine loads
+ * without it as long as no off-heap frame is used.
+ */
+public class FrameArena implements AutoCloseable
+{
+  private final Arena arena;
+
+  public FrameArena(boolean shared)
+  {
+    arena = (shared ? Arena.ofShared() : Arena.ofConfined());
+  }
+
+  /** Allocate a w x h frame. Its pixels are zero. */
+  public OffHeapFrame allocate(int w, int h)
+  {
+    return new OffHeapFrame(arena.allocate(ValueLayout.JAVA_INT.byteSize() * w * h, ValueLayout.JAVA_INT.byteAlignment()),
+                            w, h);
+  }
+
+  /** Allocate a frame holding a copy of a w x h row-major ARGB array. */
+  public OffHeapFrame copyOf(int[] pixels, int w, int h)
+  {
+    OffHeapFrame frame = allocate(w, h);
+    frame.copyFrom(pixels);
+    return frame;
+  }
+
+  /** Free every frame of the arena; using them afterwards throws IllegalStateException. */
+  public void close()
+  {
+    arena.close();
+  }
+}
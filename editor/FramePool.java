@@ -0,0 +1,105 @@
+import java.util.*;
+
+/**
+ * Pool of frame buffers keyed by (width, height, channels), so that a long render reuses a fixed set of buffers instead
+ * of allocating one per distort, blend and encode step. Frames are row-major int[] arrays of width x height pixels with
+ * up to four 8-bit channels packed per int, as ARGB; the channel count only keeps buffers of different formats apart.
+ *
+ * Acquiring and releasing do not allocate once the pool holds a buffer of the requested shape, so the pool grows to the
+ * largest number of buffers ever out at once and then stays there. Thread safe.
+ */
+public class FramePool
+{
+  // One free list per shape; the number of shapes in use is small, so they are searched linearly
+  private static class Slot
+  {
+    final int w, h, channels;
+    int[][] free = new int[4][];
+    int count = 0;
+
+    Slot(int w, int h, int channels)
+    {
+      this.w = w;
+      this.h = h;
+      this.channels = channels;
+    }
+  }
+
+  private Slot[] slots = new Slot[4];
+  private int num_slots = 0;
+  private long allocated = 0, reused = 0;
+
+  /** Get a w x h buffer with \a channels channels, reusing a released one when there is one. Contents are undefined. */
+  public int[] acquire(int w, int h, int channels)
+  {
+    synchronized (this)
+    {
+      Slot slot = find(w, h, channels);
+      if (slot != null && slot.count > 0)
+      {
+        int[] frame = slot.free[--slot.count];
+        slot.free[slot.count] = null;
+        reused++;
+        return frame;
+      }
+      allocated++;
+    }
+
+    // allocate outside the lock
+    return new int[w * h];
+  }
+
+  /** Return a buffer acquired with the same w, h and channels to the pool. Null is ignored. */
+  public void release(int[] frame, int w, int h, int channels)
+  {
+    if (frame == null)
+      return;
+    if (frame.length != w * h)
+      throw new IllegalArgumentException("Buffer of " + frame.length + " pixels released as " + w + " x " + h);
+
+    synchronized (this)
+    {
+      Slot slot = find(w, h, channels);
+      if (slot == null)
+      {
+        if (num_slots == slots.length)
+          slots = Arrays.copyOf(slots, 2 * num_slots);
+        slot = slots[num_slots++] = new Slot(w, h, channels);
+      }
+      if (slot.count == slot.free.length)
+        slot.free = Arrays.copyOf(slot.free, 2 * slot.count);
+      slot.free[slot.count++] = frame;
+    }
+  }
+
+  /** Number of buffers allocated because none of the requested shape was free. */
+  public synchronized long allocated()
+  {
+    return allocated;
+  }
+
+  /** Number of acquisitions served from released buffers. */
+  public synchronized long reused()
+  {
+    return reused;
+  }
+
+  /** Drop all free buffers. */
+  public synchronized void clear()
+  {
+    for (int i = 0; i < num_slots; ++i)
+      slots[i] = null;
+    num_slots = 0;
+  }
+
+  private Slot find(int w, int h, int channels)
+  {
+    for (int i = 0; i < num_slots; ++i)
+    {
+      Slot slot = slots[i];
+      if (slot.w == w && slot.h == h && slot.channels == channels)
+        return slot;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * Caches the parts of a morph that do not depend on a, b and p: for every pixel and segment, the displacements of both
+ * distortions and the distance to the interpolated segment. Re-rendering with new parameters then only re-evaluates
+ * the weights, which makes a, b, p sliders interactive.
+ *
+ * The image is cached in bands of TILE_ROWS rows, as float32 or (lossy, half the memory) float16, up to a memory
+ * budget; bands beyond the budget are evaluated in full on every render.
+ */
+public class GeometryCache
+{
+  // Rows per cached band
+  private static final int TILE_ROWS = 16;
+
+  // Values per pixel and segment: img1 dx, dy, img2 dx, dy, distance
+  private static final int FIELDS = 5;
+
+  private final MorphEngine engine;
+  private final BilinearSampler src1, src2;
+  private final double[] pairs;
+  private final int num_pairs;
+  private final double t;
+  private final int w, h, n;
+  private final boolean half;
+
+  // Source segment lengths of both distortions
+  private final double[] len1, len2;
+
+  // Cached bands, float[] or short[] per band, null past the budget
+  private final Object[] tiles;
+  private final int num_cached;
+
+  /**
+   * Build the cache for a morph of two images at time t. At most \a budget_bytes are used for cached values; \a half
+   * stores them as float16.
+   */
+  public GeometryCache(MorphEngine engine, BilinearSampler src1, BilinearSampler src2, double[] pairs, int num_pairs,
+                       double t, long budget_bytes, boolean half)
+  {
+    this.engine = engine;
+    this.src1 = src1;
+    this.src2 = src2;
+    this.pairs = pairs;
+    this.num_pairs = num_pairs;
+    this.t = t;
+    this.w = src1.width;
+    this.h = src1.height;
+    this.half = half;
+
+    // p only scales the weights, the geometry is the same for any p
+    final SegmentPlan plan1 = SegmentPlan.compile(pairs, num_pairs, false, t, 0);
+    final SegmentPlan plan2 = SegmentPlan.compile(pairs, num_pairs, true, 1 - t, 0);
+    n = plan1.size;
+    len1 = new double[n];
+    len2 = new double[n];
+    for (int i = 0; i < n; ++i)
+    {
+      len1[i] = Math.sqrt(plan1.src_dx[i] * plan1.src_dx[i] + plan1.src_dy[i] * plan1.src_dy[i]);
+      len2[i] = Math.sqrt(plan2.src_dx[i] * plan2.src_dx[i] + plan2.src_dy[i] * plan2.src_dy[i]);
+    }
+
+    int num_tiles = (h + TILE_ROWS - 1) / TILE_ROWS;
+    long tile_values = Math.max(1, (long)TILE_ROWS * w * n * FIELDS);
+    if (tile_values > Integer.MAX_VALUE - 8)
+      num_cached = 0;
+    else
+      num_cached = (int)Math.min(num_tiles, budget_bytes / (tile_values * (half ? 2 : 4)));
+    tiles = new Object[num_tiles];
+
+    engine.forEachBand(num_cached, 1, new MorphEngine.RowBand() {
+      public void run(int tile0, int tile1)
+      {
+        for (int tile = tile0; tile < tile1; ++tile)
+          tiles[tile] = buildTile(plan1, plan2, tile);
+      }
+    });
+  }
+
+  /** Fraction of the image rows held in the cache. */
+  public double cachedFraction()
+  {
+    return tiles.length == 0 ? 1 : (double)num_cached / tiles.length;
+  }
+
+  private Object buildTile(SegmentPlan plan1, SegmentPlan plan2, int tile)
+  {
+    int row0 = tile * TILE_ROWS, row1 = Math.min(row0 + TILE_ROWS, h);
+    int size = (row1 - row0) * w * n * FIELDS;
+    float[] values = (half ? null : new float[size]);
+    short[] packed = (half ? new short[size] : null);
+
+    int k = 0;
+    for (int row = row0; row < row1; ++row)
+      for (int col = 0; col < w; ++col)
+        for (int i = 0; i < n; ++i)
+        {
+          double px = col - plan1.dst_x[i], py = row - plan1.dst_y[i];
+          double u = px * plan1.dst_ux[i] + py * plan1.dst_uy[i];
+          double v = px * plan1.dst_vx[i] + py * plan1.dst_vy[i];
+
+          double dist;
+          if (u < 0)
+            dist = Math.sqrt(px * px + py * py);
+          else if (u > 1)
+          {
+            double qx = col - plan1.dst_ex[i], qy = row - plan1.dst_ey[i];
+            dist = Math.sqrt(qx * qx + qy * qy);
+          }
+          else
+            dist = Math.abs(v);
+
+          float dx1 = (float)(plan1.src_x[i] + u * plan1.src_dx[i] + v * plan1.src_px[i] - col);
+          float dy1 = (float)(plan1.src_y[i] + u * plan1.src_dy[i] + v * plan1.src_py[i] - row);
+          float dx2 = (float)(plan2.src_x[i] + u * plan2.src_dx[i] + v * plan2.src_px[i] - col);
+          float dy2 = (float)(plan2.src_y[i] + u * plan2.src_dy[i] + v * plan2.src_py[i] - row);
+
+          if (half)
+          {
+            packed[k++] = Float.floatToFloat16(dx1);
+            packed[k++] = Float.floatToFloat16(dy1);
+            packed[k++] = Float.floatToFloat16(dx2);
+            packed[k++] = Float.floatToFloat16(dy2);
+            packed[k++] = Float.floatToFloat16((float)dist);
+          }
+          else
+          {
+            values[k++] = dx1;
+            values[k++] = dy1;
+            values[k++] = dx2;
+            values[k++] = dy2;
+            values[k++] = (float)dist;
+          }
+        }
+
+    return (half ? packed : values);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Rendering
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Render the morph with new weighting parameters. */
+  public int[] render(final double a, final double b, final double p)
+  {
+    if (n == 0)
+      return engine.blend(src1.pixels, src2.pixels, w, h, 1 - t);
+    final int[] result = new int[w * h];
+
+    // (len^p / (a + dist))^b = len^(p b) * (a + dist)^-b, the second factor is shared by both distortions
+    final double[] len1_pb = new double[n], len2_pb = new double[n];
+    for (int i = 0; i < n; ++i)
+    {
+      len1_pb[i] = Math.pow(len1[i], p * b);
+      len2_pb[i] = Math.pow(len2[i], p * b);
+    }
+
+    final SegmentPlan plan1 = SegmentPlan.compile(pairs, num_pairs, false, t, p);
+    final SegmentPlan plan2 = SegmentPlan.compile(pairs, num_pairs, true, 1 - t, p);
+
+    engine.forEachBand(tiles.length, 1, new MorphEngine.RowBand() {
+      public void run(int tile0, int tile1)
+      {
+        for (int tile = tile0; tile < tile1; ++tile)
+        {
+          if (tiles[tile] != null)
+            renderTile(tile, a, b, len1_pb, len2_pb, result);
+          else
+          {
+            int row0 = tile * TILE_ROWS, row1 = Math.min(row0 + TILE_ROWS, h);
+            engine.morphRows(src1, src2, plan1, plan2, t, a, b, row0, row1, result);
+          }
+        }
+      }
+    });
+
+    return result;
+  }
+
+  private void renderTile(int tile, double a, double b, double[] len1_pb, double[] len2_pb, int[] result)
+  {
+    float[] values = (half ? null : (float[])tiles[tile]);
+    short[] packed = (half ? (short[])tiles[tile] : null);
+    WeightEvaluator weights = new WeightEvaluator(b, false);
+    int row0 = tile * TILE_ROWS, row1 = Math.min(row0 + TILE_ROWS, h);
+
+    int k = 0;
+    for (int row = row0; row < row1; ++row)
+      for (int col = 0; col < w; ++col)
+      {
+        double wtsum1 = 0, dissumx1 = 0, dissumy1 = 0;
+        double wtsum2 = 0, dissumx2 = 0, dissumy2 = 0;
+
+        for (int i = 0; i < n; ++i, k += FIELDS)
+        {
+          double dx1, dy1, dx2, dy2, dist;
+          if (half)
+          {
+            dx1 = Float.float16ToFloat(packed[k]);
+            dy1 = Float.float16ToFloat(packed[k + 1]);
+            dx2 = Float.float16ToFloat(packed[k + 2]);
+            dy2 = Float.float16ToFloat(packed[k + 3]);
+            dist = Float.float16ToFloat(packed[k + 4]);
+          }
+          else
+          {
+            dx1 = values[k];
+            dy1 = values[k + 1];
+            dx2 = values[k + 2];
+            dy2 = values[k + 3];
+            dist = values[k + 4];
+          }
+
+          double inv = weights.falloff(a + dist);
+          double wt1 = len1_pb[i] * inv, wt2 = len2_pb[i] * inv;
+
+          dissumx1 += dx1 * wt1;
+          dissumy1 += dy1 * wt1;
+          wtsum1 += wt1;
+          dissumx2 += dx2 * wt2;
+          dissumy2 += dy2 * wt2;
+          wtsum2 += wt2;
+        }
+
+        int pix1 = src1.sample(col + dissumx1 / wtsum1, row + dissumy1 / wtsum1);
+        int pix2 = src2.sample(col + dissumx2 / wtsum2, row + dissumy2 / wtsum2);
+        result[row * w + col] = MorphEngine.blendPixel(pix1, pix2, 1 - t);
+      }
+  }
+}
@@ -0,0 +1,376 @@
+import java.util.*;
+
+/**
+ * Barnes-Hut approximation of the Beier-Neely map for very large segment sets. The interpolated segments are clustered in
+ * a quadtree by their midpoints. A segment's displacement is affine in the pixel position P,
+ *
+ *   disp_i(P) = M_i P + c_i
+ *
+ * and its weight is len_i^(p b) * (a + dist_i(P))^-b, so for pixels far from a cluster, where every dist_i is close to the
+ * distance R to the cluster center, the cluster contributes
+ *
+ *   (a + R)^-b * (sum len_i^(p b) M_i P + sum len_i^(p b) c_i)   with weight   (a + R)^-b * sum len_i^(p b)
+ *
+ * from sums stored in the node. A cluster of radius r is approximated when r < theta * R; each of its weights is then off
+ * by a factor within ((a + R) / (a + R -+ r))^b, about 1 -+ b theta. theta = 0 evaluates every segment exactly. The cost
+ * per pixel is O(log segments) for a fixed theta.
+ *
+ * The tree is built once per plan and reused by every row. Subset plans, which a SegmentCuller makes anew for every
+ * tile, would rebuild it per tile; they hold only the segments near the tile anyway, so they are mapped exactly by the
+ * scalar kernel instead.
+ */
+public class HierarchicalDistortKernel implements DistortKernel
+{
+  // Most segments in a leaf
+  private static final int LEAF_SIZE = 8;
+
+  // Deepest level, for segments sharing a midpoint
+  private static final int MAX_DEPTH = 32;
+
+  // Stack of the tree traversal: 3 children pushed per level, plus the root
+  private static final ScratchRows scratch = new ScratchRows();
+
+  /** Opening angle: clusters with radius / distance below theta are approximated. */
+  public final double theta;
+
+  // Kernel of the subset plans
+  private final DistortKernel exact = new ScalarDistortKernel();
+
+  // Tree of the last plans seen, read without the lock
+  private volatile Tree tree;
+
+  public HierarchicalDistortKernel(double theta)
+  {
+    this.theta = theta;
+  }
+
+  public void mapRow(SegmentPlan plan, double a, double b, int row, int col0, int col1, double[] map_x, double[] map_y)
+  {
+    if (plan.subset)
+    {
+      exact.mapRow(plan, a, b, row, col0, col1, map_x, map_y);
+      return;
+    }
+    Tree tree = treeFor(plan, null, b);
+    int[] stack = scratch.getInts(3 * MAX_DEPTH + 4);
+    for (int col = col0; col < col1; ++col)
+      tree.evaluate(col, row, a, theta, stack, map_x, map_y, null, null, col - col0);
+  }
+
+  /** Walks the tree once for both distortions. */
+  public void mapRowPair(SegmentPlan plan1, SegmentPlan plan2, double a, double b, int row, int col0, int col1,
+                         double[] map1_x, double[] map1_y, double[] map2_x, double[] map2_y)
+  {
+    if (plan1.subset)
+    {
+      exact.mapRowPair(plan1, plan2, a, b, row, col0, col1, map1_x, map1_y, map2_x, map2_y);
+      return;
+    }
+    Tree tree = treeFor(plan1, plan2, b);
+    int[] stack = scratch.getInts(3 * MAX_DEPTH + 4);
+    for (int col = col0; col < col1; ++col)
+      tree.evaluate(col, row, a, theta, stack, map1_x, map1_y, map2_x, map2_y, col - col0);
+  }
+
+  /** Get the tree of the plans, building it if they changed since the last call. */
+  private Tree treeFor(SegmentPlan plan1, SegmentPlan plan2, double b)
+  {
+    Tree current = tree;
+    if (current != null && current.matches(plan1, plan2, b))
+      return current;
+    return buildTree(plan1, plan2, b);
+  }
+
+  /** Build the tree of the plans, unless another thread did while this one waited for the lock. */
+  private synchronized Tree buildTree(SegmentPlan plan1, SegmentPlan plan2, double b)
+  {
+    Tree current = tree;
+    if (current == null || !current.matches(plan1, plan2, b))
+    {
+      current = new Tree(plan1, plan2, b);
+      tree = current;
+    }
+    return current;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Tree
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Quadtree over the segments of one plan, or of two plans sharing their interpolated segments. */
+  private static class Tree
+  {
+    final SegmentPlan plan1, plan2;
+    final double b;
+    final WeightEvaluator weights;
+
+    // Per segment: u, v as affine functions of the pixel (u = ux x + uy y + u0), the affine displacement of each plan
+    // (disp_x = mxx x + mxy y + cx, disp_y = myx x + myy y + cy) and len^(p b)
+    final double[] u0, v0;
+    final double[] seg1, seg2;
+    final double[] len1_pb, len2_pb;
+
+    // Per node: center, radius, children in child_table (-1 for a leaf), first segment in order[], segment count
+    double[] node_cx = new double[16], node_cy = new double[16], node_r = new double[16];
+    int[] node_child = new int[16], node_first = new int[16], node_count = new int[16];
+
+    // Per node and plan: sums of len^(p b) times the 6 displacement coefficients, and of len^(p b)
+    double[] sum1 = new double[6 * 16], sum2 = new double[6 * 16];
+    double[] wt1 = new double[16], wt2 = new double[16];
+    int num_nodes = 0;
+
+    // Children of inner nodes, 4 entries from node_child (empty quadrants have count 0)
+    int[] child_table = new int[16];
+    int num_child_entries = 0;
+
+    // Segment indices, each leaf owns a contiguous range
+    final int[] order;
+
+    Tree(SegmentPlan plan1, SegmentPlan plan2, double b)
+    {
+      this.plan1 = plan1;
+      this.plan2 = plan2;
+      this.b = b;
+      this.weights = new WeightEvaluator(b, false);
+
+      int n = plan1.size;
+      u0 = new double[n];
+      v0 = new double[n];
+      seg1 = new double[6 * n];
+      seg2 = (plan2 == null ? null : new double[6 * n]);
+      len1_pb = new double[n];
+      len2_pb = (plan2 == null ? null : new double[n]);
+
+      double[] mid_x = new double[n], mid_y = new double[n];
+      order = new int[n];
+      for (int i = 0; i < n; ++i)
+      {
+        u0[i] = -(plan1.dst_x[i] * plan1.dst_ux[i] + plan1.dst_y[i] * plan1.dst_uy[i]);
+        v0[i] = -(plan1.dst_x[i] * plan1.dst_vx[i] + plan1.dst_y[i] * plan1.dst_vy[i]);
+        affine(plan1, i, seg1);
+        len1_pb[i] = Math.pow(plan1.len_p[i], b);
+        if (plan2 != null)
+        {
+          affine(plan2, i, seg2);
+          len2_pb[i] = Math.pow(plan2.len_p[i], b);
+        }
+
+        mid_x[i] = 0.5 * (plan1.dst_x[i] + plan1.dst_ex[i]);
+        mid_y[i] = 0.5 * (plan1.dst_y[i] + plan1.dst_ey[i]);
+        order[i] = i;
+      }
+
+      build(0, n, mid_x, mid_y, 0);
+    }
+
+    boolean matches(SegmentPlan plan1, SegmentPlan plan2, double b)
+    {
+      return this.plan1 == plan1 && this.plan2 == plan2 && this.b == b;
+    }
+
+    /** Store the affine displacement of segment i of a plan, see the field comment. */
+    private void affine(SegmentPlan plan, int i, double[] seg)
+    {
+      // source position = src + u * src_d + v * src_p, with u, v measured on plan1's (shared) interpolated segment
+      double ux = plan1.dst_ux[i], uy = plan1.dst_uy[i], vx = plan1.dst_vx[i], vy = plan1.dst_vy[i];
+      double dx = plan.src_dx[i], dy = plan.src_dy[i], px = plan.src_px[i], py = plan.src_py[i];
+      seg[6 * i]     = dx * ux + px * vx - 1;
+      seg[6 * i + 1] = dx * uy + px * vy;
+      seg[6 * i + 2] = plan.src_x[i] + dx * u0[i] + px * v0[i];
+      seg[6 * i + 3] = dy * ux + py * vx;
+      seg[6 * i + 4] = dy * uy + py * vy - 1;
+      seg[6 * i + 5] = plan.src_y[i] + dy * u0[i] + py * v0[i];
+    }
+
+    /** Build the node for order[first .. first+count-1] and return its index. */
+    private int build(int first, int count, double[] mid_x, double[] mid_y, int depth)
+    {
+      int node = newNode();
+      node_first[node] = first;
+      node_count[node] = count;
+      node_child[node] = -1;
+
+      // center of the midpoints, and radius covering every segment entirely
+      double cx = 0, cy = 0;
+      for (int k = first; k < first + count; ++k)
+      {
+        cx += mid_x[order[k]];
+        cy += mid_y[order[k]];
+      }
+      cx /= Math.max(1, count);
+      cy /= Math.max(1, count);
+
+      double r = 0;
+      for (int k = first; k < first + count; ++k)
+      {
+        int i = order[k];
+        r = Math.max(r, Math.hypot(plan1.dst_x[i] - cx, plan1.dst_y[i] - cy));
+        r = Math.max(r, Math.hypot(plan1.dst_ex[i] - cx, plan1.dst_ey[i] - cy));
+
+        for (int j = 0; j < 6; ++j)
+        {
+          sum1[6 * node + j] += len1_pb[i] * seg1[6 * i + j];
+          if (plan2 != null)
+            sum2[6 * node + j] += len2_pb[i] * seg2[6 * i + j];
+        }
+        wt1[node] += len1_pb[i];
+        if (plan2 != null)
+          wt2[node] += len2_pb[i];
+      }
+      node_cx[node] = cx;
+      node_cy[node] = cy;
+      node_r[node] = r;
+
+      if (count <= LEAF_SIZE || depth >= MAX_DEPTH)
+        return node;
+
+      // split the midpoints into quadrants around the center
+      int[] quadrant_count = new int[4];
+      int[] quadrant = new int[count];
+      for (int k = 0; k < count; ++k)
+      {
+        int i = order[first + k];
+        quadrant[k] = (mid_x[i] >= cx ? 1 : 0) + (mid_y[i] >= cy ? 2 : 0);
+        quadrant_count[quadrant[k]]++;
+      }
+      if (Math.max(Math.max(quadrant_count[0], quadrant_count[1]), Math.max(quadrant_count[2], quadrant_count[3])) == count)
+        return node;
+
+      int[] sorted = new int[count];
+      int[] next = new int[4];
+      for (int q = 1; q < 4; ++q)
+        next[q] = next[q - 1] + quadrant_count[q - 1];
+      for (int k = 0; k < count; ++k)
+        sorted[next[quadrant[k]]++] = order[first + k];
+      System.arraycopy(sorted, 0, order, first, count);
+
+      int[] children = new int[4];
+      for (int q = 0, start = first; q < 4; start += quadrant_count[q], ++q)
+        children[q] = build(start, quadrant_count[q], mid_x, mid_y, depth + 1);
+      node_child[node] = encodeChildren(children);
+      return node;
+    }
+
+    private int encodeChildren(int[] children)
+    {
+      if (num_child_entries + 4 > child_table.length)
+        child_table = Arrays.copyOf(child_table, 2 * child_table.length);
+      int base = num_child_entries;
+      for (int q = 0; q < 4; ++q)
+        child_table[base + q] = children[q];
+      num_child_entries += 4;
+      return base;
+    }
+
+    private int newNode()
+    {
+      if (num_nodes == node_cx.length)
+      {
+        int size = 2 * num_nodes;
+        node_cx = Arrays.copyOf(node_cx, size);
+        node_cy = Arrays.copyOf(node_cy, size);
+        node_r = Arrays.copyOf(node_r, size);
+        node_child = Arrays.copyOf(node_child, size);
+        node_first = Arrays.copyOf(node_first, size);
+        node_count = Arrays.copyOf(node_count, size);
+        sum1 = Arrays.copyOf(sum1, 6 * size);
+        sum2 = Arrays.copyOf(sum2, 6 * size);
+        wt1 = Arrays.copyOf(wt1, size);
+        wt2 = Arrays.copyOf(wt2, size);
+      }
+      return num_nodes++;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Evaluation
+    ////////////////////////////////////////////////////////////////////////
+
+    /** Write the source positions of pixel (x, y) to map1[k] and, with two plans, map2[k]. */
+    void evaluate(double x, double y, double a, double theta, int[] stack,
+                  double[] map1_x, double[] map1_y, double[] map2_x, double[] map2_y, int k)
+    {
+      final boolean pair = (plan2 != null);
+      final double theta2 = theta * theta;
+      double wtsum1 = 0, dissumx1 = 0, dissumy1 = 0;
+      double wtsum2 = 0, dissumx2 = 0, dissumy2 = 0;
+
+      int top = 0;
+      stack[top++] = 0;
+      while (top > 0)
+      {
+        int node = stack[--top];
+        if (node_count[node] == 0)
+          continue;
+
+        double dx = x - node_cx[node], dy = y - node_cy[node];
+        double r2 = dx * dx + dy * dy;
+        double nr = node_r[node];
+        if (nr * nr < theta2 * r2)
+        {
+          // far cluster: one weight for all of its segments
+          double g = weights.falloff(a + Math.sqrt(r2));
+          int s = 6 * node;
+          dissumx1 += g * (sum1[s] * x + sum1[s + 1] * y + sum1[s + 2]);
+          dissumy1 += g * (sum1[s + 3] * x + sum1[s + 4] * y + sum1[s + 5]);
+          wtsum1 += g * wt1[node];
+          if (pair)
+          {
+            dissumx2 += g * (sum2[s] * x + sum2[s + 1] * y + sum2[s + 2]);
+            dissumy2 += g * (sum2[s + 3] * x + sum2[s + 4] * y + sum2[s + 5]);
+            wtsum2 += g * wt2[node];
+          }
+        }
+        else if (node_child[node] >= 0)
+        {
+          int base = node_child[node];
+          for (int q = 0; q < 4; ++q)
+            stack[top++] = child_table[base + q];
+        }
+        else
+        {
+          // leaf: every segment exactly
+          for (int j = node_first[node]; j < node_first[node] + node_count[node]; ++j)
+          {
+            int i = order[j];
+            double u = plan1.dst_ux[i] * x + plan1.dst_uy[i] * y + u0[i];
+            double dist;
+            if (u < 0)
+            {
+              double px = x - plan1.dst_x[i], py = y - plan1.dst_y[i];
+              dist = Math.sqrt(px * px + py * py);
+            }
+            else if (u > 1)
+            {
+              double qx = x - plan1.dst_ex[i], qy = y - plan1.dst_ey[i];
+              dist = Math.sqrt(qx * qx + qy * qy);
+            }
+            else
+              dist = Math.abs(plan1.dst_vx[i] * x + plan1.dst_vy[i] * y + v0[i]);
+
+            double g = weights.falloff(a + dist);
+            int s = 6 * i;
+            double w1 = g * len1_pb[i];
+            dissumx1 += w1 * (seg1[s] * x + seg1[s + 1] * y + seg1[s + 2]);
+            dissumy1 += w1 * (seg1[s + 3] * x + seg1[s + 4] * y + seg1[s + 5]);
+            wtsum1 += w1;
+            if (pair)
+            {
+              double w2 = g * len2_pb[i];
+              dissumx2 += w2 * (seg2[s] * x + seg2[s + 1] * y + seg2[s + 2]);
+              dissumy2 += w2 * (seg2[s + 3] * x + seg2[s + 4] * y + seg2[s + 5]);
+              wtsum2 += w2;
+            }
+          }
+        }
+      }
+
+      map1_x[k] = x + dissumx1 / wtsum1;
+      map1_y[k] = y + dissumy1 / wtsum1;
+      if (pair)
+      {
+        map2_x[k] = x + dissumx2 / wtsum2;
+        map2_y[k] = y + dissumy2 / wtsum2;
+      }
+    }
+  }
+}
@@ -0,0 +1,266 @@
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Morph preview that keeps, for each of the two distortions, the per-pixel weighted displacement sum and weight sum of
+ * the Beier-Neely field. Adding, moving or removing one segment pair only adds or subtracts that pair's contribution, so
+ * an edit costs O(pixels) instead of O(pixels x segments). The time is fixed for the lifetime of the object; a, b, p are
+ * read from the engine, and rebuild picks up changes to them.
+ *
+ * The sums evaluate the scalar kernel's formula pair by pair, with exact or approximate powers as asked, and sample like
+ * the engine's morph. They stand in for MorphEngine.morph only when the engine evaluates that formula at every pixel for
+ * every segment: not with an adaptive grid, a culler, a hierarchical kernel, the Vector API kernel or the native engine.
+ *
+ * A pair being dragged is set as the pending pair, which render adds on the fly without touching the sums, so a drag of
+ * any length costs no subtractions.
+ */
+public class IncrementalMorph
+{
+  // Rebuild the sums from scratch after this many subtractions, to bound float cancellation error
+  private static final int MAX_SUBTRACTIONS = 1024;
+
+  private final MorphEngine engine;
+  private final BilinearSampler src1, src2;
+  private final int w, h;
+  private final double t;
+  private final boolean approximate_pow;
+
+  // Packed pairs in correspondence file order, see SegmentPlan.packPairs
+  private final ArrayList<double[]> pairs = new ArrayList<double[]>();
+
+  // Sums for img1 (moving 0 to t) and img2 (moving 1 to t)
+  private final float[] dx1, dy1, wt1;
+  private final float[] dx2, dy2, wt2;
+  private int subtractions = 0;
+
+  // Pair added by render only, and its plans; null if none
+  private double[] pending;
+  private SegmentPlan pending1, pending2;
+
+  // Pixels of the last render, overwritten by the next one
+  private final int[] result;
+
+  // Rows of the pending pair's contribution, dx dy wt for each distortion
+  private static final ThreadLocal<float[][]> pending_rows = new ThreadLocal<float[][]>();
+
+  /**
+   * Preview img1 morphing into img2 at time t with the engine's parameters; with \a approximate_pow, weights with b
+   * other than 0, 1, 2 use WeightEvaluator.approximatePow like ScalarDistortKernel(true).
+   */
+  public IncrementalMorph(MorphEngine engine, BufferedImage img1, BufferedImage img2, double t, boolean approximate_pow)
+  {
+    this.engine = engine;
+
+    // the pairs change with every edit, so the guard band is the widest one
+    this.src1 = engine.createSampler(img1, PaddedSampler.MAX_GUARD);
+    this.src2 = engine.createSampler(img2, PaddedSampler.MAX_GUARD);
+    this.w = src1.width;
+    this.h = src1.height;
+    this.t = t;
+    this.approximate_pow = approximate_pow;
+
+    if (src2.width != w || src2.height != h)
+      throw new IllegalArgumentException("Both input images must be the same dimensions");
+
+    dx1 = new float[w * h]; dy1 = new float[w * h]; wt1 = new float[w * h];
+    dx2 = new float[w * h]; dy2 = new float[w * h]; wt2 = new float[w * h];
+    result = new int[w * h];
+  }
+
+  /** Number of segment pairs in the sums, not counting the pending pair. */
+  public int size()
+  {
+    return pairs.size();
+  }
+
+  /** Append a pair of 8 doubles (asx asy aex aey bsx bsy bex bey). */
+  public void addPair(double[] pair)
+  {
+    setPair(pairs.size(), pair);
+  }
+
+  /** Replace pair \a index, or append it if index == size(). */
+  public void setPair(int index, double[] pair)
+  {
+    pair = pair.clone();
+    if (index < pairs.size())
+    {
+      contribute(pairs.get(index), -1);
+      pairs.set(index, pair);
+      subtractions++;
+    }
+    else
+      pairs.add(pair);
+
+    contribute(pair, 1);
+    checkDrift();
+  }
+
+  /**
+   * Set the pair render adds on top of the sums, such as one being dragged; null for none. Unlike setPair this costs
+   * nothing until render and leaves the sums untouched.
+   */
+  public void setPending(double[] pair)
+  {
+    pending = (pair == null ? null : pair.clone());
+    pending1 = (pair == null ? null : SegmentPlan.compile(pair, 1, false, t, engine.p));
+    pending2 = (pair == null ? null : SegmentPlan.compile(pair, 1, true, 1 - t, engine.p));
+    if (pending1 != null && (pending1.size == 0 || pending2.size == 0))
+      pending1 = pending2 = null;
+  }
+
+  /** Remove pair \a index; later pairs move down by one. */
+  public void removePair(int index)
+  {
+    contribute(pairs.remove(index), -1);
+    subtractions++;
+    checkDrift();
+  }
+
+  /** Recompute the sums from the current pairs, with the engine's current a, b, p. */
+  public void rebuild()
+  {
+    setPending(pending);
+    Arrays.fill(dx1, 0); Arrays.fill(dy1, 0); Arrays.fill(wt1, 0);
+    Arrays.fill(dx2, 0); Arrays.fill(dy2, 0); Arrays.fill(wt2, 0);
+    for (double[] pair : pairs)
+      contribute(pair, 1);
+    subtractions = 0;
+  }
+
+  private void checkDrift()
+  {
+    if (subtractions > MAX_SUBTRACTIONS)
+      rebuild();
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Rendering
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Render the morph from the current sums and the pending pair. The image shares one pixel buffer across renders, so
+   * the next render overwrites it.
+   */
+  public BufferedImage render()
+  {
+    final boolean empty = pairs.isEmpty() && pending1 == null;
+    final SegmentPlan plan1 = pending1, plan2 = pending2;
+    final double a = engine.a;
+    final WeightEvaluator weights = new WeightEvaluator(engine.b, approximate_pow);
+
+    engine.forEachBand(h, new MorphEngine.RowBand() {
+      public void run(int row0, int row1)
+      {
+        float[][] rows = pendingRows();
+        for (int row = row0; row < row1; ++row)
+        {
+          for (float[] r : rows)
+            Arrays.fill(r, 0, w, 0);
+          if (plan1 != null)
+          {
+            accumulateRow(plan1, a, weights, row, w, 1, rows[0], rows[1], rows[2], 0);
+            accumulateRow(plan2, a, weights, row, w, 1, rows[3], rows[4], rows[5], 0);
+          }
+
+          for (int col = 0, k = row * w; col < w; ++col, ++k)
+          {
+            float sum_wt1 = wt1[k] + rows[2][col], sum_wt2 = wt2[k] + rows[5][col];
+            int pix1, pix2;
+            if (empty || sum_wt1 <= 0 || sum_wt2 <= 0)
+            {
+              pix1 = src1.pixels[k];
+              pix2 = src2.pixels[k];
+            }
+            else
+            {
+              pix1 = src1.sample(col + (dx1[k] + rows[0][col]) / sum_wt1, row + (dy1[k] + rows[1][col]) / sum_wt1);
+              pix2 = src2.sample(col + (dx2[k] + rows[3][col]) / sum_wt2, row + (dy2[k] + rows[4][col]) / sum_wt2);
+            }
+            result[k] = MorphEngine.blendPixel(pix1, pix2, 1 - t);
+          }
+        }
+      }
+    });
+
+    return BilinearSampler.wrap(result, w, h);
+  }
+
+  /** The calling thread's rows for the pending pair's contribution. */
+  private float[][] pendingRows()
+  {
+    float[][] rows = pending_rows.get();
+    if (rows == null || rows[0].length < w)
+    {
+      rows = new float[6][w];
+      pending_rows.set(rows);
+    }
+    return rows;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Sums
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Add \a sign times the contribution of one pair to both distortions. */
+  private void contribute(double[] pair, final float sign)
+  {
+    final SegmentPlan plan1 = SegmentPlan.compile(pair, 1, false, t, engine.p);
+    final SegmentPlan plan2 = SegmentPlan.compile(pair, 1, true, 1 - t, engine.p);
+    if (plan1.size == 0 || plan2.size == 0)
+      return;
+
+    final double a = engine.a;
+    final WeightEvaluator weights = new WeightEvaluator(engine.b, approximate_pow);
+    engine.forEachBand(h, new MorphEngine.RowBand() {
+      public void run(int row0, int row1)
+      {
+        for (int row = row0; row < row1; ++row)
+        {
+          accumulateRow(plan1, a, weights, row, w, sign, dx1, dy1, wt1, row * w);
+          accumulateRow(plan2, a, weights, row, w, sign, dx2, dy2, wt2, row * w);
+        }
+      }
+    });
+  }
+
+  /**
+   * Add \a sign times the displacement and weight of the plan's first segment to one row of sums, starting at index
+   * \a base.
+   */
+  private static void accumulateRow(SegmentPlan plan, double a, WeightEvaluator weights, int row, int w, float sign,
+                                    float[] sum_dx, float[] sum_dy, float[] sum_wt, int base)
+  {
+    final double y = row;
+    final double py = y - plan.dst_y[0];
+    final double uy = py * plan.dst_uy[0], vy = py * plan.dst_vy[0];
+    final double qy = y - plan.dst_ey[0];
+
+    for (int col = 0, k = base; col < w; ++col, ++k)
+    {
+      double px = col - plan.dst_x[0];
+      double u = px * plan.dst_ux[0] + uy;
+      double v = px * plan.dst_vx[0] + vy;
+
+      // displacement to the point interpolated wrt to the src line
+      double disx = plan.src_x[0] + u * plan.src_dx[0] + v * plan.src_px[0] - col;
+      double disy = plan.src_y[0] + u * plan.src_dy[0] + v * plan.src_py[0] - y;
+
+      double dist;
+      if (u < 0)
+        dist = Math.sqrt(px * px + py * py);
+      else if (u > 1)
+      {
+        double qx = col - plan.dst_ex[0];
+        dist = Math.sqrt(qx * qx + qy * qy);
+      }
+      else
+        dist = Math.abs(v);
+
+      double wt = weights.weight(plan.len_p[0], a + dist) * sign;
+      sum_dx[k] += (float)(disx * wt);
+      sum_dy[k] += (float)(disy * wt);
+      sum_wt[k] += (float)wt;
+    }
+  }
+}
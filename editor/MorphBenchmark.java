@@ -0,0 +1,885 @@
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Micro-benchmarks for the morph hot paths: correspondence parsing, segment compilation, the distortion kernel at several
+ * segment counts, bilinear sampling, blending and end-to-end frames on the sample image pairs.
+ *
+ * Each case is warmed up, then timed over a number of samples that each repeat the operation for at least -sample_ms.
+ * Results are printed as a table and, with -json, written as JSON for regression tracking. Run with
+ *
+ *   java --add-modules jdk.incubator.vector MorphBenchmark -images ../images -json results.json
+ *
+ * -backend picks the Java kernel of the kernel and frame cases, or with native renders the frames with libmorph.so
+ * (JVM with --enable-preview) and leaves the kernel cases to the scalar kernel. Each case builds its data only once it
+ * is selected by -filter, a substring of its name, or -case, its exact name, so a filtered run skips the setup of the
+ * others, such as the 20000-segment tree.
+ *
+ * By default the cases share one JVM, and with it the JIT's profiles: a call site that every case goes through, the
+ * kernel calls of MorphEngine or the sampler calls of the distortion loops, sees every kernel and sampler class of the
+ * run and goes megamorphic, so a case can time differently after others than alone. Each case has its own Op class to
+ * keep its own loop monomorphic, but that does not reach into the engine. -fork measures every case in a fresh JVM
+ * with the same JVM options and arguments, which is the run to trust when comparing kernels or frame paths.
+ *
+ * With -alloc_check n it instead renders n frames through SequenceRenderer's pipeline after warm-up under a JFR recording
+ * and fails if distorting and blending them allocates more than -alloc_limit_kb per frame; that pipeline takes the
+ * scalar, simd or native backend. -parse_pairs n adds the parse cases on a generated set of n pairs, such as the 1M-pair
+ * sets of tracked meshes:
+ *
+ *   java MorphBenchmark -filter parse/ -parse_pairs 1000000 -warmup_ms 0 -samples 3
+ */
+public class MorphBenchmark
+{
+  // Segment counts of the kernel cases; 28 is the count of editor/3.txt
+  private static final int[] SEGMENT_COUNTS = { 4, 28, 200, 2000 };
+
+  // Opening angle of the hierarchical kernel cases, which also run on a tracked-mesh sized set
+  private static final double TREE_THETA = 0.5;
+  private static final int TREE_SEGMENT_COUNT = 20000;
+
+  // Relative weight below which the culled cases drop a segment
+  private static final double CULL_EPSILON = 1e-3;
+
+  // Exponent of the pow cases, one without a fast path
+  private static final double GENERAL_B = 1.5;
+
+  // Rows of the image mapped by one kernel operation
+  private static final int KERNEL_ROWS = 16;
+
+  // Command-line program arguments
+  private String image_dir = "../images";
+  private String correspondence_name = "3.txt";
+  private String json_name = null;
+  private String filter = null;
+  private String case_name = null;
+  private boolean fork = false;
+  private String backend = "scalar";
+  private long warmup_ms = 500;
+  private long sample_ms = 200;
+  private int num_samples = 10;
+  private int alloc_frames = 0;
+  private long alloc_limit = 64 << 10;
+  private int parse_pairs = 0;
+
+  // Set by -fork in its child JVMs, which print the raw result of their one case
+  private boolean forked = false;
+
+  /** One timed operation. The returned value is kept so the JIT cannot drop the work. */
+  interface Op
+  {
+    Object run() throws Exception;
+  }
+
+  /** Builds the data of a case and its operation, once the case is measured. */
+  interface Fixture
+  {
+    Op setUp() throws Exception;
+  }
+
+  /** A named operation and the number of work units (pixels, segments, bytes) it processes. */
+  private static class Case
+  {
+    final String name;
+    final long units;
+    final String unit;
+    final Fixture fixture;
+
+    // Results
+    double mean, stdev, min;
+    long ops;
+
+    Case(String name, long units, String unit, Fixture fixture)
+    {
+      this.name = name;
+      this.units = units;
+      this.unit = unit;
+      this.fixture = fixture;
+    }
+  }
+
+  private final ArrayList<Case> cases = new ArrayList<Case>();
+  private volatile Object sink;
+
+  /** Does -case or -filter select the case \a name? */
+  boolean selected(String name)
+  {
+    return (case_name != null ? name.equals(case_name) : filter == null || name.contains(filter));
+  }
+
+  /** Register a case whose fixture is set up when it is measured, unless it is not selected. */
+  void add(String name, long units, String unit, Fixture fixture)
+  {
+    if (selected(name))
+      cases.add(new Case(name, units, unit, fixture));
+  }
+
+  /** Register a case whose operation needs no setup of its own. */
+  void add(String name, long units, String unit, final Op op)
+  {
+    add(name, units, unit, new Fixture() {
+      public Op setUp() { return op; }
+    });
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Cases
+  ////////////////////////////////////////////////////////////////////////
+
+  private void addCases() throws IOException
+  {
+    final BufferedImage img1 = Editor.loadImage(image_dir + "/BushObama0.0.png");
+    final BufferedImage img2 = Editor.loadImage(image_dir + "/BushObama1.0.png");
+    if (img1 == null || img2 == null)
+      throw new IOException("Could not load the sample images from " + image_dir);
+
+    final Vector<Line2D.Double> bush = new Vector<Line2D.Double>();
+    if (!Editor.loadCorrespondences(correspondence_name, img1, img2, bush))
+      throw new IOException("Could not read correspondence file " + correspondence_name);
+
+    // native renders the frames with libmorph.so and leaves the row kernel cases to the scalar kernel
+    final boolean native_frames = backend.equals("native");
+    final MorphEngine engine = new MorphEngine();
+    final DistortKernel kernel = MorphEngine.createKernel(native_frames ? "scalar" : backend);
+    if (kernel == null)
+      throw new IllegalArgumentException("Unknown backend: " + backend);
+    engine.setKernel(kernel);
+    String library = System.getProperty("morph.library", NativeMorph.DEFAULT_LIBRARY);
+    if (native_frames)
+      engine.setNativeMorph(new NativeMorph(library));
+
+    final int w = img1.getWidth(), h = img1.getHeight();
+    final BilinearSampler src1 = new BilinearSampler(img1), src2 = new BilinearSampler(img2);
+
+    // Parsing a generated set of -parse_pairs pairs, on request since the Scanner takes seconds per run there
+    if (parse_pairs > 0)
+      addParse(parse_pairs, w, h, null, img1, img2);
+
+    for (final int n : SEGMENT_COUNTS)
+    {
+      // Parsing
+      addParse(n, w, h, bush, img1, img2);
+
+      // Compilation
+      add("compile/" + n, n, "pair", new Fixture() {
+        public Op setUp()
+        {
+          final double[] pairs = SegmentPlan.packPairs(segments(n, w, h, bush));
+          return new Op() {
+            public Object run() { return SegmentPlan.compile(pairs, n, false, 0.5, engine.p); }
+          };
+        }
+      });
+
+      // Kernel, on a band of rows in the middle of the image
+      if (!native_frames)
+      {
+        add("kernel/" + backend + "/" + n, (long)KERNEL_ROWS * w * n, "pixel*segment", new Fixture() {
+          public Op setUp()
+          {
+            final SegmentPlan plan = SegmentPlan.compile(segments(n, w, h, bush), false, 0.5, engine.p);
+            final double[] map_x = new double[w], map_y = new double[w];
+            return new Op() {
+              public Object run()
+              {
+                for (int row = h / 2; row < h / 2 + KERNEL_ROWS; ++row)
+                  kernel.mapRow(plan, engine.a, engine.b, row, 0, w, map_x, map_y);
+                return map_x;
+              }
+            };
+          }
+        });
+      }
+
+      // Kernel generated for this segment set
+      if (n <= SpecializingDistortKernel.MAX_SEGMENTS)
+      {
+        add("kernel/specialized/" + n, (long)KERNEL_ROWS * w * n, "pixel*segment", new Fixture() {
+          public Op setUp()
+          {
+            final SegmentPlan plan = SegmentPlan.compile(segments(n, w, h, bush), false, 0.5, engine.p);
+            final double[] map_x = new double[w], map_y = new double[w];
+            final SpecializingDistortKernel specialized = new SpecializingDistortKernel(kernel, false, false);
+            return new Op() {
+              public Object run()
+              {
+                for (int row = h / 2; row < h / 2 + KERNEL_ROWS; ++row)
+                  specialized.mapRow(plan, engine.a, engine.b, row, 0, w, map_x, map_y);
+                return map_x;
+              }
+            };
+          }
+        });
+      }
+
+      // General exponent, with the exact and the approximate power
+      add("kernel/pow/" + n, (long)KERNEL_ROWS * w * n, "pixel*segment", new Fixture() {
+        public Op setUp()
+        {
+          final SegmentPlan plan = SegmentPlan.compile(segments(n, w, h, bush), false, 0.5, engine.p);
+          final double[] map_x = new double[w], map_y = new double[w];
+          return new Op() {
+            public Object run()
+            {
+              for (int row = h / 2; row < h / 2 + KERNEL_ROWS; ++row)
+                kernel.mapRow(plan, engine.a, GENERAL_B, row, 0, w, map_x, map_y);
+              return map_x;
+            }
+          };
+        }
+      });
+      add("kernel/fast_pow/" + n, (long)KERNEL_ROWS * w * n, "pixel*segment", new Fixture() {
+        public Op setUp()
+        {
+          final SegmentPlan plan = SegmentPlan.compile(segments(n, w, h, bush), false, 0.5, engine.p);
+          final double[] map_x = new double[w], map_y = new double[w];
+          final ScalarDistortKernel fast_pow = new ScalarDistortKernel(true);
+          return new Op() {
+            public Object run()
+            {
+              for (int row = h / 2; row < h / 2 + KERNEL_ROWS; ++row)
+                fast_pow.mapRow(plan, engine.a, GENERAL_B, row, 0, w, map_x, map_y);
+              return map_x;
+            }
+          };
+        }
+      });
+
+      // Direct u, v per pixel, against the kernel's incremental rows
+      add("kernel/direct/" + n, (long)KERNEL_ROWS * w * n, "pixel*segment", new Fixture() {
+        public Op setUp()
+        {
+          final SegmentPlan plan = SegmentPlan.compile(segments(n, w, h, bush), false, 0.5, engine.p);
+          final WeightEvaluator weights = new WeightEvaluator(engine.b, false);
+          final double[] map_x = new double[w], map_y = new double[w];
+          return new Op() {
+            public Object run()
+            {
+              for (int row = h / 2; row < h / 2 + KERNEL_ROWS; ++row)
+                for (int col = 0; col < w; ++col)
+                  ScalarDistortKernel.mapPixel(plan, engine.a, weights, col, row, map_x, map_y, col);
+              return map_x;
+            }
+          };
+        }
+      });
+    }
+
+    // Hierarchical kernel, same band of rows
+    final HierarchicalDistortKernel tree = new HierarchicalDistortKernel(TREE_THETA);
+    int[] tree_counts = Arrays.copyOf(SEGMENT_COUNTS, SEGMENT_COUNTS.length + 1);
+    tree_counts[SEGMENT_COUNTS.length] = TREE_SEGMENT_COUNT;
+    for (final int n : tree_counts)
+    {
+      add("kernel/tree/" + n, (long)KERNEL_ROWS * w * n, "pixel*segment", new Fixture() {
+        public Op setUp()
+        {
+          final SegmentPlan plan = SegmentPlan.compile(segments(n, w, h, bush), false, 0.5, engine.p);
+          final double[] map_x = new double[w], map_y = new double[w];
+          return new Op() {
+            public Object run()
+            {
+              for (int row = h / 2; row < h / 2 + KERNEL_ROWS; ++row)
+                tree.mapRow(plan, engine.a, engine.b, row, 0, w, map_x, map_y);
+              return map_x;
+            }
+          };
+        }
+      });
+    }
+
+    // Culled frames, whose cost should follow the local segment density rather than the count. With b = 1 the weight
+    // falls off too slowly for culling to drop much, so these use b = 2.
+    final MorphEngine culled = new MorphEngine();
+    culled.setParameters(0.5, 2, 0.2);
+    culled.setKernel(kernel);
+    culled.setSegmentCuller(new SegmentCuller(32, CULL_EPSILON));
+    for (final int n : SEGMENT_COUNTS)
+    {
+      add("frame/cull/" + n, (long)w * h, "pixel", new Fixture() {
+        public Op setUp() { return frame(culled, img1, img2, segments(n, w, h, bush)); }
+      });
+    }
+
+    // Sampling at a fixed field of fractional positions
+    add("sample", (long)w * h, "pixel", new Fixture() {
+      public Op setUp()
+      {
+        double[][] positions = samplePositions(w, h, false);
+        final double[] sample_x = positions[0], sample_y = positions[1];
+        return new Op() {
+          public Object run()
+          {
+            int sum = 0;
+            for (int k = 0; k < sample_x.length; ++k)
+              sum += src1.sample(sample_x[k], sample_y[k]);
+            return sum;
+          }
+        };
+      }
+    });
+    add("sample/padded", (long)w * h, "pixel", new Fixture() {
+      public Op setUp()
+      {
+        double[][] positions = samplePositions(w, h, false);
+        final double[] sample_x = positions[0], sample_y = positions[1];
+        final PaddedSampler padded = new PaddedSampler(img1, 4);
+        return new Op() {
+          public Object run()
+          {
+            int sum = 0;
+            for (int k = 0; k < sample_x.length; ++k)
+              sum += padded.sample(sample_x[k], sample_y[k]);
+            return sum;
+          }
+        };
+      }
+    });
+    add("sample/tiled", (long)w * h, "pixel", new Fixture() {
+      public Op setUp()
+      {
+        double[][] positions = samplePositions(w, h, false);
+        final double[] sample_x = positions[0], sample_y = positions[1];
+        final TiledSampler tiled = new TiledSampler(img1, 4);
+        return new Op() {
+          public Object run()
+          {
+            int sum = 0;
+            for (int k = 0; k < sample_x.length; ++k)
+              sum += tiled.sample(sample_x[k], sample_y[k]);
+            return sum;
+          }
+        };
+      }
+    });
+
+    // The same positions rotated by 60 degrees about the center, visited in output row order, the access pattern of a
+    // tilted feature. Run these under perf stat -e L1-dcache-load-misses,LLC-load-misses for the cache miss counts.
+    add("sample/rotated/padded", (long)w * h, "pixel", new Fixture() {
+      public Op setUp()
+      {
+        double[][] positions = samplePositions(w, h, true);
+        final double[] sample_x = positions[0], sample_y = positions[1];
+        final PaddedSampler padded = new PaddedSampler(img1, 4);
+        return new Op() {
+          public Object run()
+          {
+            int sum = 0;
+            for (int k = 0; k < sample_x.length; ++k)
+              sum += padded.sample(sample_x[k], sample_y[k]);
+            return sum;
+          }
+        };
+      }
+    });
+    add("sample/rotated/tiled", (long)w * h, "pixel", new Fixture() {
+      public Op setUp()
+      {
+        double[][] positions = samplePositions(w, h, true);
+        final double[] sample_x = positions[0], sample_y = positions[1];
+        final TiledSampler tiled = new TiledSampler(img1, 4);
+        return new Op() {
+          public Object run()
+          {
+            int sum = 0;
+            for (int k = 0; k < sample_x.length; ++k)
+              sum += tiled.sample(sample_x[k], sample_y[k]);
+            return sum;
+          }
+        };
+      }
+    });
+
+    add("blend", (long)w * h, "pixel", new Op() {
+      public Object run() { return engine.blend(src1.pixels, src2.pixels, w, h, 0.5); }
+    });
+
+    // End to end, every sample pair, also with tile-order traversal over tiled sources
+    final MorphEngine tiled_engine = new MorphEngine();
+    tiled_engine.setKernel(kernel);
+    tiled_engine.setTileOrder(TiledSampler.TILE);
+    tiled_engine.setTiledSource(true);
+    add("frame/BushObama", (long)w * h, "pixel", frame(engine, img1, img2, bush));
+    add("frame/tiled/BushObama", (long)w * h, "pixel", frame(tiled_engine, img1, img2, bush));
+
+    // The C++ engine in-process, when libmorph.so is built and the JVM runs with --enable-preview
+    if (!native_frames && selected("frame/native/BushObama"))
+    {
+      try
+      {
+        MorphEngine native_engine = new MorphEngine();
+        native_engine.setNativeMorph(new NativeMorph(library));
+        add("frame/native/BushObama", (long)w * h, "pixel", frame(native_engine, img1, img2, bush));
+      }
+      catch (IllegalArgumentException | LinkageError e)
+      {
+        System.err.println("Skipping native cases, could not load " + library + ": " + e);
+      }
+    }
+
+    // A whole-image rotation by 60 degrees, where row-major sources are at their worst
+    Vector<Line2D.Double> rotation = rotatedFrame(w, h, Math.PI / 3);
+    add("frame/rotated", (long)w * h, "pixel", frame(engine, img1, img2, rotation));
+    add("frame/rotated/tiled", (long)w * h, "pixel", frame(tiled_engine, img1, img2, rotation));
+    String[] names = { "OrlandoEfron", "TravoltaDepp", "WinslettJohansson" };
+    for (String name : names)
+    {
+      // the pair's size is part of the case, so only a selected pair is loaded
+      if (!selected("frame/" + name) && !selected("frame/tiled/" + name))
+        continue;
+      BufferedImage a = Editor.loadImage(image_dir + "/" + name + "A.jpeg");
+      BufferedImage b = Editor.loadImage(image_dir + "/" + name + "B.jpeg");
+      if (a == null || b == null || a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+        continue;
+
+      // no correspondences ship with these pairs, use random ones of the same count as editor/3.txt
+      Vector<Line2D.Double> segments = randomSegments(bush.size() / 2, a.getWidth(), a.getHeight(), 1);
+      add("frame/" + name, (long)a.getWidth() * a.getHeight(), "pixel", frame(engine, a, b, segments));
+      add("frame/tiled/" + name, (long)a.getWidth() * a.getHeight(), "pixel", frame(tiled_engine, a, b, segments));
+    }
+  }
+
+  /** The pairs of editor/3.txt for its own count, otherwise \a n random pairs seeded by n. */
+  private static Vector<Line2D.Double> segments(int n, int w, int h, Vector<Line2D.Double> bush)
+  {
+    return (bush != null && n == bush.size() / 2 ? bush : randomSegments(n, w, h, n));
+  }
+
+  /**
+   * Parse cases over a file of \a n pairs: parse/n through Editor.loadCorrespondences, parse/stream/n straight into
+   * packed pairs, and parse/scanner/n with the Scanner loop the Editor used before CorrespondenceParser. The file is
+   * written by the first of them to be set up.
+   */
+  private void addParse(final int n, final int w, final int h, final Vector<Line2D.Double> bush,
+                        final BufferedImage img1, final BufferedImage img2)
+  {
+    final File[] file = new File[1];
+    add("parse/" + n, n, "pair", new Fixture() {
+      public Op setUp() throws IOException
+      {
+        final String path = parseFile(file, n, w, h, bush).getPath();
+        return new Op() {
+          public Object run()
+          {
+            Vector<Line2D.Double> parsed = new Vector<Line2D.Double>();
+            Editor.loadCorrespondences(path, img1, img2, parsed);
+            return parsed;
+          }
+        };
+      }
+    });
+    add("parse/stream/" + n, n, "pair", new Fixture() {
+      public Op setUp() throws IOException
+      {
+        final String path = parseFile(file, n, w, h, bush).getPath();
+        return new Op() {
+          public Object run() throws IOException { return CorrespondenceParser.parse(path); }
+        };
+      }
+    });
+    add("parse/scanner/" + n, n, "pair", new Fixture() {
+      public Op setUp() throws IOException
+      {
+        final File scanned = parseFile(file, n, w, h, bush);
+        return new Op() {
+          public Object run() throws IOException { return scannerParse(scanned); }
+        };
+      }
+    });
+  }
+
+  // The parse cases' file in file[0], written on first use
+  private static File parseFile(File[] file, int n, int w, int h, Vector<Line2D.Double> bush) throws IOException
+  {
+    if (file[0] == null)
+    {
+      File written = File.createTempFile("morph-bench-" + n, ".txt");
+      written.deleteOnExit();
+      writeCorrespondences(written, segments(n, w, h, bush));
+      file[0] = written;
+    }
+    return file[0];
+  }
+
+  /** The Editor's former parser: java.util.Scanner, two Line2D.Double per pair. */
+  static Vector<Line2D.Double> scannerParse(File file) throws IOException
+  {
+    Vector<Line2D.Double> segments = new Vector<Line2D.Double>();
+    Scanner in = new Scanner(new BufferedReader(new FileReader(file)));
+    try
+    {
+      int num_segs = in.nextInt();
+      for (int i = 0; i < num_segs; ++i)
+      {
+        segments.add(new Line2D.Double(in.nextDouble(), in.nextDouble(), in.nextDouble(), in.nextDouble()));
+        segments.add(new Line2D.Double(in.nextDouble(), in.nextDouble(), in.nextDouble(), in.nextDouble()));
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    return segments;
+  }
+
+  private static Op frame(final MorphEngine engine, final BufferedImage img1, final BufferedImage img2,
+                          final Vector<Line2D.Double> segments)
+  {
+    return new Op() {
+      public Object run() { return engine.morph(img1, img2, segments, 0.5); }
+    };
+  }
+
+  /**
+   * A w x h field of positions within 2 pixels of each pixel, in output row order, x at [0] and y at [1]; rotated by 60
+   * degrees about the center if \a rotated.
+   */
+  static double[][] samplePositions(int w, int h, boolean rotated)
+  {
+    double[] sample_x = new double[w * h], sample_y = new double[w * h];
+    Random random = new Random(1);
+    double cos = Math.cos(Math.PI / 3), sin = Math.sin(Math.PI / 3);
+    for (int k = 0; k < w * h; ++k)
+    {
+      double x = k % w + 4 * random.nextDouble() - 2, y = k / w + 4 * random.nextDouble() - 2;
+      double dx = x - w / 2, dy = y - h / 2;
+      sample_x[k] = (rotated ? w / 2 + cos * dx - sin * dy : x);
+      sample_y[k] = (rotated ? h / 2 + sin * dx + cos * dy : y);
+    }
+    return new double[][] { sample_x, sample_y };
+  }
+
+
+  /** Random pairs of segments 10 to 60 pixels long, like hand-drawn features, with the target within 20 pixels. */
+  static Vector<Line2D.Double> randomSegments(int n, int w, int h, long seed)
+  {
+    Random random = new Random(seed);
+    Vector<Line2D.Double> segments = new Vector<Line2D.Double>();
+    while (segments.size() < 2 * n)
+    {
+      double len = 10 + 50 * random.nextDouble(), angle = 2 * Math.PI * random.nextDouble();
+      double sx = random.nextDouble() * w, sy = random.nextDouble() * h;
+      double ex = sx + len * Math.cos(angle), ey = sy + len * Math.sin(angle);
+
+      segments.add(new Line2D.Double(sx, sy, ex, ey));
+      segments.add(new Line2D.Double(sx + 40 * random.nextDouble() - 20, sy + 40 * random.nextDouble() - 20,
+                                     ex + 40 * random.nextDouble() - 20, ey + 40 * random.nextDouble() - 20));
+    }
+    return segments;
+  }
+
+  /** Pairs mapping the four edges of a w x h image to the same edges rotated by \a angle about the center. */
+  static Vector<Line2D.Double> rotatedFrame(int w, int h, double angle)
+  {
+    double[] corner_x = { 0, w, w, 0 }, corner_y = { 0, 0, h, h };
+    double cos = Math.cos(angle), sin = Math.sin(angle);
+    Vector<Line2D.Double> segments = new Vector<Line2D.Double>();
+    for (int c = 0; c < 4; ++c)
+    {
+      int d = (c + 1) % 4;
+      double sx = corner_x[c] - w / 2.0, sy = corner_y[c] - h / 2.0, ex = corner_x[d] - w / 2.0, ey = corner_y[d] - h / 2.0;
+      segments.add(new Line2D.Double(corner_x[c], corner_y[c], corner_x[d], corner_y[d]));
+      segments.add(new Line2D.Double(w / 2.0 + cos * sx - sin * sy, h / 2.0 + sin * sx + cos * sy,
+                                     w / 2.0 + cos * ex - sin * ey, h / 2.0 + sin * ex + cos * ey));
+    }
+    return segments;
+  }
+
+  /** Write segments in the format read by Editor.loadCorrespondences. */
+  static void writeCorrespondences(File file, Vector<Line2D.Double> segments) throws IOException
+  {
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+    writer.println(segments.size() / 2);
+    for (int i = 0; i + 1 < segments.size(); i += 2)
+    {
+      Line2D.Double a = segments.get(i), b = segments.get(i + 1);
+      writer.println(a.x1 + " " + a.y1 + " " + a.x2 + " " + a.y2 + " " + b.x1 + " " + b.y1 + " " + b.x2 + " " + b.y2);
+    }
+    writer.close();
+    if (writer.checkError())
+      throw new IOException("Could not write " + file);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Measurement
+  ////////////////////////////////////////////////////////////////////////
+
+  private void measure(Case c) throws Exception
+  {
+    Op op = c.fixture.setUp();
+
+    // warm up until the JIT has had a go at it
+    long end = System.nanoTime() + warmup_ms * 1000000;
+    do
+      sink = op.run();
+    while (System.nanoTime() < end);
+
+    double[] samples = new double[num_samples];
+    for (int i = 0; i < num_samples; ++i)
+    {
+      long ops = 0, start = System.nanoTime(), now;
+      do
+      {
+        sink = op.run();
+        ops++;
+        now = System.nanoTime();
+      }
+      while (now - start < sample_ms * 1000000);
+
+      samples[i] = (double)(now - start) / ops;
+      c.ops += ops;
+    }
+
+    double sum = 0, sum2 = 0;
+    c.min = Double.MAX_VALUE;
+    for (double s : samples)
+    {
+      sum += s;
+      c.min = Math.min(c.min, s);
+    }
+    c.mean = sum / num_samples;
+    for (double s : samples)
+      sum2 += (s - c.mean) * (s - c.mean);
+    c.stdev = (num_samples > 1 ? Math.sqrt(sum2 / (num_samples - 1)) : 0);
+  }
+
+  /**
+   * Measure \a c in a child JVM with this one's JVM options and the program arguments \a args, selecting only \a c,
+   * so it has the JIT profiles to itself.
+   */
+  private void measureForked(Case c, String[] args) throws Exception
+  {
+    List<String> command = new ArrayList<String>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(MorphBenchmark.class.getName());
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (args[i].equals("-json") || args[i].equals("-filter") || args[i].equals("-case"))
+        i++;
+      else if (!args[i].equals("-fork"))
+        command.add(args[i]);
+    }
+    command.addAll(Arrays.asList("-case", c.name, "-forked"));
+
+    Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    String result = null;
+    BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    for (String line = in.readLine(); line != null; line = in.readLine())
+      if (line.startsWith("result "))
+        result = line;
+    in.close();
+    if (process.waitFor() != 0 || result == null)
+      throw new IOException("The forked JVM measuring " + c.name + " failed");
+
+    String[] fields = result.split(" ");
+    c.mean = Double.parseDouble(fields[1]);
+    c.stdev = Double.parseDouble(fields[2]);
+    c.min = Double.parseDouble(fields[3]);
+    c.ops = Long.parseLong(fields[4]);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Allocation check
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Render alloc_frames frames of the BushObama morph with SequenceRenderer's pipeline, distort, blend and encode, once
+   * to warm up and then under a JFR recording, and measure the heap the frames allocate from the TLAB events. Returns
+   * whether the average per frame is within alloc_limit. The encoder threads are reported apart and not checked, since
+   * the PNG writer allocates its own buffers for every image.
+   */
+  private boolean checkAllocation() throws Exception
+  {
+    BufferedImage img1 = Editor.loadImage(image_dir + "/BushObama0.0.png");
+    BufferedImage img2 = Editor.loadImage(image_dir + "/BushObama1.0.png");
+    Vector<Line2D.Double> segments = new Vector<Line2D.Double>();
+    if (img1 == null || img2 == null || !Editor.loadCorrespondences(correspondence_name, img1, img2, segments))
+      throw new IOException("Could not load the sample images from " + image_dir);
+
+    File dir = java.nio.file.Files.createTempDirectory("morph-alloc").toFile();
+    SequenceRenderer renderer = new SequenceRenderer();
+    String[] args = { image_dir + "/BushObama0.0.png", image_dir + "/BushObama1.0.png", correspondence_name,
+                      Integer.toString(alloc_frames), new File(dir, "frame").getPath(), "-backend", backend };
+    if (!renderer.parseArgs(args))
+      throw new IllegalArgumentException("SequenceRenderer does not take -backend " + backend);
+    renderer.prepare(img1, img2, segments);
+
+    long end = System.nanoTime() + warmup_ms * 1000000;
+    do
+      renderer.renderFrames();
+    while (System.nanoTime() < end);
+
+    File file = File.createTempFile("morph-alloc", ".jfr");
+    file.deleteOnExit();
+    jdk.jfr.Recording recording = new jdk.jfr.Recording();
+    recording.enable("jdk.ObjectAllocationInNewTLAB").withoutStackTrace();
+    recording.enable("jdk.ObjectAllocationOutsideTLAB").withoutStackTrace();
+    recording.start();
+    int failed = renderer.renderFrames();
+    recording.stop();
+    recording.dump(file.toPath());
+    recording.close();
+
+    for (File frame : dir.listFiles())
+      frame.delete();
+    dir.delete();
+    if (failed > 0)
+      throw new IOException(failed + " frames failed");
+
+    // a new TLAB stands for the allocations that fill it, so the TLAB sizes add up to the bytes allocated
+    long bytes = 0, encode_bytes = 0;
+    for (jdk.jfr.consumer.RecordedEvent event : jdk.jfr.consumer.RecordingFile.readAllEvents(file.toPath()))
+    {
+      jdk.jfr.consumer.RecordedThread thread = event.getThread();
+      String name = (thread != null ? thread.getJavaName() : null);
+      if (name != null && name.startsWith("JFR"))
+        continue;
+      long size = event.getLong(event.getEventType().getName().equals("jdk.ObjectAllocationInNewTLAB") ? "tlabSize"
+                                                                                                      : "allocationSize");
+      if (name != null && name.startsWith("encode-"))
+        encode_bytes += size;
+      else
+        bytes += size;
+    }
+
+    long per_frame = bytes / alloc_frames;
+    System.out.println("Allocated " + bytes + " bytes in " + alloc_frames + " frames, " + per_frame + " per frame (limit "
+                     + alloc_limit + "), and " + encode_bytes / alloc_frames + " per frame encoding PNGs");
+    return per_frame <= alloc_limit;
+  }
+
+  private void writeJson(String path) throws IOException
+  {
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+    writer.println("{");
+    writer.println("  \"java\": \"" + System.getProperty("java.version") + "\",");
+    writer.println("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",");
+    writer.println("  \"backend\": \"" + backend + "\",");
+    writer.println("  \"warmup_ms\": " + warmup_ms + ", \"sample_ms\": " + sample_ms + ", \"samples\": " + num_samples + ",");
+    writer.println("  \"results\": [");
+    for (int i = 0; i < cases.size(); ++i)
+    {
+      Case c = cases.get(i);
+      writer.print(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"ns_per_op\": %.1f, \"stdev\": %.1f, \"min\": %.1f,"
+                                            + " \"ops\": %d, \"units\": %d, \"unit\": \"%s\", \"ns_per_unit\": %.4f}",
+                                 c.name, c.mean, c.stdev, c.min, c.ops, c.units, c.unit, c.mean / Math.max(1, c.units)));
+      writer.println(i + 1 < cases.size() ? "," : "");
+    }
+    writer.println("  ]");
+    writer.println("}");
+    writer.close();
+    if (writer.checkError())
+      throw new IOException("Could not write " + path);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Program argument parsing
+  ////////////////////////////////////////////////////////////////////////
+
+  private boolean parseArgs(String[] args)
+  {
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (args[i].equals("-images"))
+        image_dir = args[++i];
+      else if (args[i].equals("-correspondences"))
+        correspondence_name = args[++i];
+      else if (args[i].equals("-json"))
+        json_name = args[++i];
+      else if (args[i].equals("-filter"))
+        filter = args[++i];
+      else if (args[i].equals("-case"))
+        case_name = args[++i];
+      else if (args[i].equals("-fork"))
+        fork = true;
+      else if (args[i].equals("-forked"))
+        forked = true;
+      else if (args[i].equals("-backend"))
+        backend = args[++i];
+      else if (args[i].equals("-warmup_ms"))
+        warmup_ms = Long.parseLong(args[++i]);
+      else if (args[i].equals("-sample_ms"))
+        sample_ms = Long.parseLong(args[++i]);
+      else if (args[i].equals("-samples"))
+        num_samples = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-alloc_check"))
+        alloc_frames = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-alloc_limit_kb"))
+        alloc_limit = Long.parseLong(args[++i]) << 10;
+      else if (args[i].equals("-parse_pairs"))
+        parse_pairs = Integer.parseInt(args[++i]);
+      else
+      {
+        System.err.println("Usage: MorphBenchmark [-images dir] [-correspondences file] [-json out.json] [-filter name]"
+                         + " [-case name] [-fork] [-backend scalar|simd|specialized|native] [-warmup_ms n]"
+                         + " [-sample_ms n] [-samples n]"
+                         + " [-alloc_check frames] [-alloc_limit_kb n] [-parse_pairs n]");
+        return false;
+      }
+    }
+
+    if (num_samples < 1)
+    {
+      System.err.println("Sample count must be positive");
+      return false;
+    }
+
+    if (!MorphEngine.KERNEL_BACKENDS.contains(backend) && !backend.equals("native"))
+    {
+      System.err.println("Unknown backend: " + backend);
+      return false;
+    }
+
+    // Return OK status
+    return true;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Main program
+  ////////////////////////////////////////////////////////////////////////
+
+  public static void main(String[] args) throws Exception
+  {
+    MorphBenchmark bench = new MorphBenchmark();
+    if (!bench.parseArgs(args))
+      System.exit(-1);
+
+    if (bench.alloc_frames > 0)
+    {
+      if (!bench.checkAllocation())
+        System.exit(-1);
+      return;
+    }
+
+    bench.addCases();
+    if (bench.forked)
+    {
+      for (Case c : bench.cases)
+      {
+        bench.measure(c);
+        System.out.println("result " + c.mean + " " + c.stdev + " " + c.min + " " + c.ops);
+      }
+      return;
+    }
+
+    System.out.println(String.format("%-32s %14s %12s %14s", "case", "ns/op", "stdev", "ns/unit"));
+    for (Case c : bench.cases)
+    {
+      if (bench.fork)
+        bench.measureForked(c, args);
+      else
+        bench.measure(c);
+      System.out.println(String.format(Locale.ROOT, "%-32s %14.1f %12.1f %14.4f %s", c.name, c.mean, c.stdev,
+                                       c.mean / Math.max(1, c.units), c.unit));
+    }
+
+    if (bench.json_name != null)
+      bench.writeJson(bench.json_name);
+  }
+}
@@ -0,0 +1,540 @@
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pure-Java port of the Beier-Neely morph in src/morph.cpp (distortImage, sampleBilinear, blendImages), used to preview
+ * the Editor's correspondences without shelling out to the morph binary. Rows are split into bands that run on a
+ * ForkJoinPool.
+ */
+public class MorphEngine
+{
+  // Bands with at most this many rows are rendered directly instead of being split further
+  private static final int MIN_BAND_ROWS = 16;
+
+  // Pixel rows of an adaptive band, several cell rows so that neighbouring cell rows share their node rows
+  private static final int ADAPTIVE_BAND_ROWS = 64;
+
+  // Map rows of the band workers, and node rows of adaptive bands
+  private static final ScratchRows scratch = new ScratchRows();
+  private static final ScratchRows node_scratch = new ScratchRows();
+
+  private final ForkJoinPool pool;
+  private DistortKernel kernel = new ScalarDistortKernel();
+  private AdaptiveGrid grid;
+  private SegmentCuller culler;
+  private int tile_order;
+  private boolean tiled_source;
+  private NativeMorph native_morph;
+
+  // Weighting parameters, same defaults as the morph binary
+  double a = 0.5;
+  double b = 1;
+  double p = 0.2;
+
+  /** Work done on a contiguous band of rows [row0, row1). */
+  interface RowBand
+  {
+    void run(int row0, int row1);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Constructors
+  ////////////////////////////////////////////////////////////////////////
+
+  public MorphEngine()
+  {
+    this(ForkJoinPool.commonPool());
+  }
+
+  public MorphEngine(ForkJoinPool pool)
+  {
+    this.pool = pool;
+  }
+
+  /** Set the a, b, p weighting parameters of the Beier-Neely field. */
+  public void setParameters(double a, double b, double p)
+  {
+    this.a = a;
+    this.b = b;
+    this.p = p;
+  }
+
+  /** Set the kernel evaluating the inverse map. */
+  public void setKernel(DistortKernel kernel)
+  {
+    this.kernel = kernel;
+  }
+
+  /** Backend names createKernel accepts, for checking options without creating a kernel. */
+  public static final List<String> KERNEL_BACKENDS = Collections.unmodifiableList(Arrays.asList("scalar", "simd",
+                                                                                                "specialized"));
+
+  /**
+   * Create the distortion kernel for a backend name: "scalar", "simd" for the Vector API kernel, or "specialized" for
+   * kernels generated per segment set (see SpecializingDistortKernel). Falls back to the scalar kernel when the
+   * jdk.incubator.vector module is not present (run with --add-modules jdk.incubator.vector). Returns null for an
+   * unknown name.
+   */
+  public static DistortKernel createKernel(String backend)
+  {
+    return createKernel(backend, false);
+  }
+
+  /**
+   * Create a kernel as above; with \a approximate_pow the scalar and specialized kernels evaluate weights with exponents
+   * other than 0, 1 and 2 with WeightEvaluator.approximatePow. The Vector API kernel always uses the exact power, and
+   * says so when asked for the approximate one.
+   */
+  public static DistortKernel createKernel(String backend, boolean approximate_pow)
+  {
+    if (backend.equals("scalar"))
+      return new ScalarDistortKernel(approximate_pow);
+
+    if (backend.equals("specialized"))
+      return new SpecializingDistortKernel(new ScalarDistortKernel(approximate_pow), approximate_pow, false);
+
+    if (backend.equals("simd"))
+    {
+      if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+      {
+        try
+        {
+          DistortKernel kernel = (DistortKernel)Class.forName("VectorDistortKernel").getDeclaredConstructor().newInstance();
+          if (approximate_pow)
+            System.err.println("The Vector API kernel has no approximate power, using the exact one");
+          return kernel;
+        }
+        catch (Exception | LinkageError e) {}
+      }
+
+      System.err.println("Vector API not available, using the scalar kernel");
+      return new ScalarDistortKernel(approximate_pow);
+    }
+
+    return null;
+  }
+
+  /** Evaluate the map on an adaptive coarse grid instead of at every pixel; null for exact mode. */
+  public void setAdaptiveGrid(AdaptiveGrid grid)
+  {
+    this.grid = grid;
+  }
+
+  public AdaptiveGrid getAdaptiveGrid()
+  {
+    return grid;
+  }
+
+  /**
+   * Evaluate only the segments that matter for each tile of pixels; null to evaluate every segment everywhere. Not used
+   * in adaptive mode, whose grid points are sparse already.
+   */
+  public void setSegmentCuller(SegmentCuller culler)
+  {
+    this.culler = culler;
+  }
+
+  public SegmentCuller getSegmentCuller()
+  {
+    return culler;
+  }
+
+  /**
+   * Traverse the output in \a tile x \a tile blocks instead of whole rows, so that the source positions sampled next to
+   * each other stay close in both directions; 0 for row order. With a culler the culler's tiles are used instead.
+   */
+  public void setTileOrder(int tile)
+  {
+    this.tile_order = Math.max(0, tile);
+  }
+
+  /** Sample the source images of morph(BufferedImage, ...) from a TiledSampler copy instead of a row-major one. */
+  public void setTiledSource(boolean tiled)
+  {
+    this.tiled_source = tiled;
+  }
+
+  /**
+   * Render morph(BufferedImage, ...) with the C++ engine through libmorph.so instead of the Java kernels; null for the
+   * Java engine. The other morph, distort and blend methods are not affected.
+   */
+  public void setNativeMorph(NativeMorph native_morph)
+  {
+    this.native_morph = native_morph;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Morphing
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Morph img1 into img2 at time t. \a segments holds the correspondences the way the Editor stores them: source segment at
+   * even indices, target segment at odd indices. A trailing unmatched segment is ignored.
+   */
+  public BufferedImage morph(BufferedImage img1, BufferedImage img2, Vector<Line2D.Double> segments, double t)
+  {
+    int w = img1.getWidth();
+    int h = img1.getHeight();
+    if (img2.getWidth() != w || img2.getHeight() != h)
+      throw new IllegalArgumentException("Both input images must be the same dimensions");
+    if (native_morph != null)
+      return native_morph.morph(img1, img2, segments, t, a, b, p);
+
+    // img1 moves from 0 to t, img2 moves from 1 to t
+    double[] pairs = SegmentPlan.packPairs(segments);
+    SegmentPlan plan1 = SegmentPlan.compile(pairs, segments.size() / 2, false, t, p);
+    SegmentPlan plan2 = SegmentPlan.compile(pairs, segments.size() / 2, true, 1 - t, p);
+
+    BilinearSampler src1 = createSampler(img1, PaddedSampler.guardFor(plan1, w, h));
+    BilinearSampler src2 = createSampler(img2, PaddedSampler.guardFor(plan2, w, h));
+    if (grid != null)
+    {
+      int[] distorted1 = distort(src1, plan1);
+      int[] distorted2 = distort(src2, plan2);
+      return BilinearSampler.wrap(blend(distorted1, distorted2, w, h, 1 - t), w, h);
+    }
+
+    return BilinearSampler.wrap(morph(src1, src2, plan1, plan2, t), w, h);
+  }
+
+  /** Sampler of \a img with a guard band of \a guard pixels, tiled if setTiledSource is on, as morph uses them. */
+  BilinearSampler createSampler(BufferedImage img, int guard)
+  {
+    return (tiled_source ? new TiledSampler(img, guard) : new PaddedSampler(img, guard));
+  }
+
+  /**
+   * Morph in a single pass: each output pixel is mapped through both distortions, both images are sampled and the blend
+   * is written directly, without full-frame distorted intermediates. \a plan1 and \a plan2 must be compiled from the same
+   * pairs for img1 (reverse = false, t) and img2 (reverse = true, 1 - t).
+   */
+  public int[] morph(BilinearSampler src1, BilinearSampler src2, SegmentPlan plan1, SegmentPlan plan2, double t)
+  {
+    return morph(src1, src2, plan1, plan2, t, new int[src1.width * src1.height]);
+  }
+
+  /** Morph in a single pass as above into \a result, a w x h array, for example from a FramePool. Returns result. */
+  public int[] morph(final BilinearSampler src1, final BilinearSampler src2, final SegmentPlan plan1,
+                     final SegmentPlan plan2, final double t, final int[] result)
+  {
+    final int w = src1.width, h = src1.height;
+    if (plan1.size == 0)
+      return blend(src1.pixels, src2.pixels, w, h, 1 - t, result);
+
+    if (culler != null || tile_order > 0)
+    {
+      forEachTile(w, h, new TileTask() {
+        public void run(SegmentPlan sub1, SegmentPlan sub2, int col0, int row0, int col1, int row1, double[][] maps)
+        {
+          for (int row = row0; row < row1; ++row)
+          {
+            kernel.mapRowPair(sub1, sub2, a, b, row, col0, col1, maps[0], maps[1], maps[2], maps[3]);
+            for (int col = col0, k = 0; col < col1; ++col, ++k)
+              result[row * w + col] = blendPixel(src1.sample(maps[0][k], maps[1][k]), src2.sample(maps[2][k], maps[3][k]),
+                                                 1 - t);
+          }
+        }
+      }, plan1, plan2);
+      return result;
+    }
+
+    forEachBand(h, new RowBand() {
+      public void run(int row0, int row1)
+      {
+        morphRows(src1, src2, plan1, plan2, t, a, b, row0, row1, result);
+      }
+    });
+
+    return result;
+  }
+
+  /** Render rows [row0, row1) of a single-pass morph into \a result with weighting parameters a, b. */
+  void morphRows(BilinearSampler src1, BilinearSampler src2, SegmentPlan plan1, SegmentPlan plan2, double t,
+                 double a, double b, int row0, int row1, int[] result)
+  {
+    int w = src1.width;
+    double[][] maps = scratch.get(4, w);
+    double[] map1_x = maps[0], map1_y = maps[1], map2_x = maps[2], map2_y = maps[3];
+    for (int row = row0; row < row1; ++row)
+    {
+      kernel.mapRowPair(plan1, plan2, a, b, row, 0, w, map1_x, map1_y, map2_x, map2_y);
+      for (int col = 0, k = row * w; col < w; ++col, ++k)
+        result[k] = blendPixel(src1.sample(map1_x[col], map1_y[col]), src2.sample(map2_x[col], map2_y[col]), 1 - t);
+    }
+  }
+
+  /**
+   * Distort an image into a row-major ARGB array. Segments are interpolated from their start to their end position by t;
+   * when \a reverse is set the target segments of each pair are the start and the source segments the end.
+   */
+  public int[] distort(BilinearSampler src, Vector<Line2D.Double> segments, boolean reverse, double t)
+  {
+    return distort(src, SegmentPlan.compile(segments, reverse, t, p));
+  }
+
+  /** Distort an image into a row-major ARGB array with a compiled segment plan. */
+  public int[] distort(BilinearSampler src, SegmentPlan plan)
+  {
+    return distort(src, plan, new int[src.width * src.height]);
+  }
+
+  /** Distort an image with a compiled segment plan into \a result, a w x h array. Returns result. */
+  public int[] distort(final BilinearSampler src, final SegmentPlan plan, final int[] result)
+  {
+    final int w = src.width, h = src.height;
+    if (plan.size == 0)
+    {
+      System.arraycopy(src.pixels, 0, result, 0, w * h);
+      return result;
+    }
+
+    if (grid != null)
+    {
+      // bands of whole cell rows
+      final AdaptiveGrid grid = this.grid;
+      final int cell = grid.cell;
+      forEachBand((h + cell - 1) / cell, Math.max(1, ADAPTIVE_BAND_ROWS / cell), new RowBand() {
+        public void run(int cell_row0, int cell_row1)
+        {
+          double[][] maps = scratch.get(2, cell * w);
+          double[][] nodes = node_scratch.get(4, grid.nodeCount(w));
+          double[] map_x = maps[0], map_y = maps[1];
+          for (int cell_row = cell_row0; cell_row < cell_row1; ++cell_row)
+          {
+            int row0 = cell_row * cell;
+            int rows = grid.mapBand(kernel, plan, a, b, row0, w, h, map_x, map_y, nodes, cell_row > cell_row0);
+            sampleRows(src, result, row0, rows, map_x, map_y);
+          }
+        }
+      });
+      return result;
+    }
+
+    if (culler != null || tile_order > 0)
+    {
+      forEachTile(w, h, new TileTask() {
+        public void run(SegmentPlan sub, SegmentPlan unused, int col0, int row0, int col1, int row1, double[][] maps)
+        {
+          for (int row = row0; row < row1; ++row)
+          {
+            kernel.mapRow(sub, a, b, row, col0, col1, maps[0], maps[1]);
+            for (int col = col0, k = 0; col < col1; ++col, ++k)
+              result[row * w + col] = src.sample(maps[0][k], maps[1][k]);
+          }
+        }
+      }, plan, null);
+      return result;
+    }
+
+    forEachBand(h, new RowBand() {
+      public void run(int row0, int row1)
+      {
+        double[][] maps = scratch.get(2, w);
+        double[] map_x = maps[0], map_y = maps[1];
+        for (int row = row0; row < row1; ++row)
+        {
+          kernel.mapRow(plan, a, b, row, 0, w, map_x, map_y);
+          sampleRows(src, result, row, 1, map_x, map_y);
+        }
+      }
+    });
+
+    return result;
+  }
+
+  /** Linearly blend two w x h ARGB images: each channel is img1 * t + img2 * (1 - t). */
+  public int[] blend(int[] img1, int[] img2, int w, int h, double t)
+  {
+    return blend(img1, img2, w, h, t, new int[w * h]);
+  }
+
+  /** Blend two w x h ARGB images as above into \a result, which may be one of them. Returns result. */
+  public int[] blend(final int[] img1, final int[] img2, final int w, int h, final double t, final int[] result)
+  {
+    forEachBand(h, new RowBand() {
+      public void run(int row0, int row1)
+      {
+        for (int i = row0 * w; i < row1 * w; ++i)
+          result[i] = blendPixel(img1[i], img2[i], t);
+      }
+    });
+
+    return result;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Off-heap frames
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Morph in a single pass into an off-heap frame of the sources' size. Off-heap frames are always rendered in row order;
+   * the adaptive grid, culler and tile order only apply to int[] frames. Returns result.
+   */
+  public OffHeapFrame morph(final BilinearSampler src1, final BilinearSampler src2, final SegmentPlan plan1,
+                            final SegmentPlan plan2, final double t, final OffHeapFrame result)
+  {
+    final int w = src1.width;
+    forEachBand(src1.height, new RowBand() {
+      public void run(int row0, int row1)
+      {
+        double[][] maps = scratch.get(4, w);
+        for (int row = row0; row < row1; ++row)
+        {
+          if (plan1.size == 0)
+          {
+            for (int k = row * w; k < (row + 1) * w; ++k)
+              result.set(k, blendPixel(src1.pixels[k], src2.pixels[k], 1 - t));
+            continue;
+          }
+
+          kernel.mapRowPair(plan1, plan2, a, b, row, 0, w, maps[0], maps[1], maps[2], maps[3]);
+          for (int col = 0, k = row * w; col < w; ++col, ++k)
+            result.set(k, blendPixel(src1.sample(maps[0][col], maps[1][col]), src2.sample(maps[2][col], maps[3][col]),
+                                     1 - t));
+        }
+      }
+    });
+
+    return result;
+  }
+
+  /** Distort an image into an off-heap frame of its size, in row order like morph above. Returns result. */
+  public OffHeapFrame distort(final BilinearSampler src, final SegmentPlan plan, final OffHeapFrame result)
+  {
+    final int w = src.width;
+    forEachBand(src.height, new RowBand() {
+      public void run(int row0, int row1)
+      {
+        double[][] maps = scratch.get(2, w);
+        for (int row = row0; row < row1; ++row)
+        {
+          if (plan.size == 0)
+          {
+            for (int k = row * w; k < (row + 1) * w; ++k)
+              result.set(k, src.pixels[k]);
+            continue;
+          }
+
+          kernel.mapRow(plan, a, b, row, 0, w, maps[0], maps[1]);
+          for (int col = 0, k = row * w; col < w; ++col, ++k)
+            result.set(k, src.sample(maps[0][col], maps[1][col]));
+        }
+      }
+    });
+
+    return result;
+  }
+
+  /** Blend two off-heap frames of the same size into \a result, which may be one of them. Returns result. */
+  public OffHeapFrame blend(final OffHeapFrame img1, final OffHeapFrame img2, final double t, final OffHeapFrame result)
+  {
+    final int w = img1.width;
+    forEachBand(img1.height, new RowBand() {
+      public void run(int row0, int row1)
+      {
+        for (int i = row0 * w; i < row1 * w; ++i)
+          result.set(i, blendPixel(img1.get(i), img2.get(i), t));
+      }
+    });
+
+    return result;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Pixel helpers
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Linearly blend two ARGB pixels: each channel is pix1 * t + pix2 * (1 - t). */
+  static int blendPixel(int pix1, int pix2, double t)
+  {
+    int res = 0;
+    for (int shift = 0; shift < 32; shift += 8)
+    {
+      double z = ((pix1 >>> shift) & 0xff) * t + ((pix2 >>> shift) & 0xff) * (1 - t);
+      res |= ((int)z) << shift;
+    }
+    return res;
+  }
+
+  /** Sample \a rows rows starting at \a row0 at the source positions in map_x, map_y. */
+  private static void sampleRows(BilinearSampler src, int[] result, int row0, int rows, double[] map_x, double[] map_y)
+  {
+    int base = row0 * src.width;
+    for (int k = 0; k < rows * src.width; ++k)
+      result[base + k] = src.sample(map_x[k], map_y[k]);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Parallel helpers
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Run \a band over rows [0, h), split into bands on the engine's pool. */
+  void forEachBand(int h, RowBand band)
+  {
+    forEachBand(h, MIN_BAND_ROWS, band);
+  }
+
+  /** Run \a band over rows [0, h), split into bands of at most \a min_rows rows. */
+  void forEachBand(int h, int min_rows, RowBand band)
+  {
+    pool.invoke(new BandTask(band, 0, h, min_rows));
+  }
+
+  /** Work done on one tile of pixels with the segments that apply to it; \a maps holds four tile-wide scratch rows. */
+  private interface TileTask
+  {
+    void run(SegmentPlan sub1, SegmentPlan sub2, int col0, int row0, int col1, int row1, double[][] maps);
+  }
+
+  /**
+   * Run \a task over the tiles of a w x h image, in bands of whole tile rows: the culler's tiles with the segments culled
+   * for each, or else tile_order tiles with every segment. \a plan2 may be null.
+   */
+  private void forEachTile(final int w, final int h, final TileTask task, final SegmentPlan plan1,
+                           final SegmentPlan plan2)
+  {
+    final SegmentCuller culler = this.culler;
+    final int tile = (culler != null ? culler.tile : tile_order);
+    final SegmentPlan[] all = { plan1, plan2 };
+    forEachBand((h + tile - 1) / tile, 1, new RowBand() {
+      public void run(int tile_row0, int tile_row1)
+      {
+        double[][] maps = scratch.get(4, tile);
+        for (int row0 = tile_row0 * tile; row0 < Math.min(tile_row1 * tile, h); row0 += tile)
+          for (int col0 = 0; col0 < w; col0 += tile)
+          {
+            int col1 = Math.min(col0 + tile, w), row1 = Math.min(row0 + tile, h);
+            SegmentPlan[] sub = (culler != null ? culler.cull(plan1, plan2, a, b, col0, row0, col1, row1) : all);
+            task.run(sub[0], sub[1], col0, row0, col1, row1, maps);
+          }
+      }
+    });
+  }
+
+  private static class BandTask extends RecursiveAction
+  {
+    private final RowBand band;
+    private final int row0, row1, min_rows;
+
+    BandTask(RowBand band, int row0, int row1, int min_rows)
+    {
+      this.band = band;
+      this.row0 = row0;
+      this.row1 = row1;
+      this.min_rows = min_rows;
+    }
+
+    protected void compute()
+    {
+      if (row1 - row0 <= min_rows)
+        band.run(row0, row1);
+      else
+      {
+        int mid = (row0 + row1) >>> 1;
+        invokeAll(new BandTask(band, row0, mid, min_rows), new BandTask(band, mid, row1, min_rows));
+      }
+    }
+  }
+}
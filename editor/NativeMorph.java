@@ -0,0 +1,189 @@
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.lang.foreign.*;
+import java.lang.invoke.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Morph backend running the C++ engine of src/morph.cpp in-process: libmorph.so (built by make lib) is bound through the
+ * Foreign Function & Memory API. OffHeapFrames are passed to it as they are, without copying; BufferedImages are copied
+ * into native frames once and reused while the same images come back. Frames match the morph binary's exactly, and the
+ * Java engine's to within 2 levels per channel, the rounding of its fixed-point bilinear sampling; the C++ engine is
+ * single-threaded.
+ *
+ * SequenceRenderer -backend native renders whole sequences through the off-heap methods.
+ *
+ * Like FrameArena this needs --enable-preview on JDK 21.
+ */
+public class NativeMorph
+{
+  /** Library path relative to editor/, where the Makefile leaves it; override with -Dmorph.library=path. */
+  public static final String DEFAULT_LIBRARY = "../libmorph.so";
+
+  // Bytes per pixel of the frames, packed ARGB
+  private static final int CHANNELS = 4;
+
+  private final MethodHandle distort_handle, blend_handle, morph_handle;
+
+  // Native copies of the last heap images morphed, and their result frame
+  private BufferedImage heap1, heap2;
+  private FrameArena heap_arena;
+  private OffHeapFrame heap_frame1, heap_frame2, heap_result;
+
+  /** Bind the library at \a path. Throws IllegalArgumentException if it cannot be loaded or lacks the C API. */
+  public NativeMorph(String path)
+  {
+    SymbolLookup library = SymbolLookup.libraryLookup(Paths.get(path), Arena.global());
+    Linker linker = Linker.nativeLinker();
+    ValueLayout I = ValueLayout.JAVA_INT, D = ValueLayout.JAVA_DOUBLE, P = ValueLayout.ADDRESS;
+
+    distort_handle = linker.downcallHandle(find(library, "morph_distort"),
+                                           FunctionDescriptor.of(I, P, P, I, I, I, P, I, I, D, D, D, D));
+    blend_handle = linker.downcallHandle(find(library, "morph_blend"), FunctionDescriptor.of(I, P, P, P, I, I, I, D));
+    morph_handle = linker.downcallHandle(find(library, "morph_morph"),
+                                         FunctionDescriptor.of(I, P, P, P, I, I, I, P, I, D, D, D, D));
+  }
+
+  private static MemorySegment find(SymbolLookup library, String name)
+  {
+    Optional<MemorySegment> symbol = library.find(name);
+    if (!symbol.isPresent())
+      throw new IllegalArgumentException("Native morph library has no symbol " + name);
+    return symbol.get();
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Off-heap frames
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Distort \a src into \a result with \a num_pairs packed pairs (see SegmentPlan.packPairs), interpolated by t like
+   * MorphEngine.distort; with \a reverse the second segment of each pair is the start.
+   */
+  public void distort(OffHeapFrame src, double[] pairs, int num_pairs, boolean reverse, double t, double a, double b,
+                      double p, OffHeapFrame result)
+  {
+    checkSize(src, result);
+    try (Arena call = Arena.ofConfined())
+    {
+      check((int)distort_handle.invokeExact(src.segment(), result.segment(), src.width, src.height, CHANNELS,
+                                            copyPairs(call, pairs, num_pairs), num_pairs, (reverse ? 1 : 0), t, a, b, p));
+    }
+    catch (Throwable e)
+    {
+      throw failure(e);
+    }
+  }
+
+  /** Blend two frames into \a result, which may be one of them: each channel is img1 * t + img2 * (1 - t). */
+  public void blend(OffHeapFrame img1, OffHeapFrame img2, double t, OffHeapFrame result)
+  {
+    checkSize(img1, img2);
+    checkSize(img1, result);
+    try
+    {
+      check((int)blend_handle.invokeExact(img1.segment(), img2.segment(), result.segment(), img1.width, img1.height,
+                                          CHANNELS, t));
+    }
+    catch (Throwable e)
+    {
+      throw failure(e);
+    }
+  }
+
+  /** Morph img1 into img2 at time t with \a num_pairs packed pairs, writing the blended frame into \a result. */
+  public void morph(OffHeapFrame img1, OffHeapFrame img2, double[] pairs, int num_pairs, double t, double a, double b,
+                    double p, OffHeapFrame result)
+  {
+    checkSize(img1, img2);
+    checkSize(img1, result);
+    try (Arena call = Arena.ofConfined())
+    {
+      check((int)morph_handle.invokeExact(img1.segment(), img2.segment(), result.segment(), img1.width, img1.height,
+                                          CHANNELS, copyPairs(call, pairs, num_pairs), num_pairs, t, a, b, p));
+    }
+    catch (Throwable e)
+    {
+      throw failure(e);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Heap images
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Morph like MorphEngine.morph. The images are copied to native frames only when they differ from the last call's,
+   * so repeated morphs of the same pair, like the Editor's previews, copy just the result back; the images must not be
+   * modified in between. The native frames of the last pair stay allocated until another pair is morphed.
+   */
+  public synchronized BufferedImage morph(BufferedImage img1, BufferedImage img2, Vector<Line2D.Double> segments,
+                                          double t, double a, double b, double p)
+  {
+    int w = img1.getWidth(), h = img1.getHeight();
+    if (img2.getWidth() != w || img2.getHeight() != h)
+      throw new IllegalArgumentException("Both input images must be the same dimensions");
+
+    if (img1 != heap1 || img2 != heap2)
+    {
+      if (heap_arena != null)
+        heap_arena.close();
+      heap1 = heap2 = null;
+
+      // shared, since the calls may come from different threads
+      heap_arena = new FrameArena(true);
+      heap_frame1 = heap_arena.copyOf(BilinearSampler.pixels(BilinearSampler.toARGB(img1)), w, h);
+      heap_frame2 = heap_arena.copyOf(BilinearSampler.pixels(BilinearSampler.toARGB(img2)), w, h);
+      heap_result = heap_arena.allocate(w, h);
+      heap1 = img1;
+      heap2 = img2;
+    }
+
+    int num_pairs = segments.size() / 2;
+    if (num_pairs == 0)
+      blend(heap_frame1, heap_frame2, 1 - t, heap_result);
+    else
+      morph(heap_frame1, heap_frame2, SegmentPlan.packPairs(segments), num_pairs, t, a, b, p, heap_result);
+
+    int[] result = new int[w * h];
+    heap_result.copyTo(result);
+    return BilinearSampler.wrap(result, w, h);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Helpers
+  ////////////////////////////////////////////////////////////////////////
+
+  private static MemorySegment copyPairs(Arena arena, double[] pairs, int num_pairs)
+  {
+    if (pairs.length < 8 * num_pairs)
+      throw new IllegalArgumentException(num_pairs + " pairs need " + 8 * num_pairs + " values, got " + pairs.length);
+
+    MemorySegment segment = arena.allocate(ValueLayout.JAVA_DOUBLE.byteSize() * Math.max(1, 8 * num_pairs),
+                                           ValueLayout.JAVA_DOUBLE.byteAlignment());
+    MemorySegment.copy(pairs, 0, segment, ValueLayout.JAVA_DOUBLE, 0, 8 * num_pairs);
+    return segment;
+  }
+
+  private static void checkSize(OffHeapFrame a, OffHeapFrame b)
+  {
+    if (a.width != b.width || a.height != b.height)
+      throw new IllegalArgumentException("Frames must be the same dimensions");
+  }
+
+  private static void check(int status)
+  {
+    if (status != 0)
+      throw new IllegalArgumentException("Native morph rejected its arguments");
+  }
+
+  private static RuntimeException failure(Throwable e)
+  {
+    if (e instanceof RuntimeException)
+      return (RuntimeException)e;
+    if (e instanceof Error)
+      throw (Error)e;
+    return new IllegalStateException("Native morph failed", e);
+  }
+}
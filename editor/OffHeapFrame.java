@@ -0,0 +1,86 @@
+import java.awt.image.*;
+import java.lang.foreign.*;
+
+/**
+ * A w x h row-major ARGB frame in native memory, allocated by a FrameArena. Pixels are read and written one int at a time
+ * through the segment's indexed accessors, which the JIT compiles to plain loads and stores after a bounds check; only
+ * accessors with the same signature in JDK 21 and 22 are used, so the class compiles unchanged on either.
+ */
+public class OffHeapFrame
+{
+  private static final ValueLayout.OfInt PIXEL = ValueLayout.JAVA_INT;
+
+  public final int width, height;
+  private final MemorySegment segment;
+
+  OffHeapFrame(MemorySegment segment, int w, int h)
+  {
+    this.segment = segment;
+    this.width = w;
+    this.height = h;
+  }
+
+  /** Get pixel \a index, row * width + col. */
+  public int get(int index)
+  {
+    return segment.getAtIndex(PIXEL, index);
+  }
+
+  /** Set pixel \a index, row * width + col. */
+  public void set(int index, int argb)
+  {
+    segment.setAtIndex(PIXEL, index, argb);
+  }
+
+  /** The frame's memory, for native calls. */
+  MemorySegment segment()
+  {
+    return segment;
+  }
+
+  /** Copy a row-major ARGB array of this frame's size into the frame. */
+  public void copyFrom(int[] pixels)
+  {
+    MemorySegment.copy(pixels, 0, segment, PIXEL, 0, width * height);
+  }
+
+  /** Copy the frame into a row-major ARGB array of its size. */
+  public void copyTo(int[] pixels)
+  {
+    MemorySegment.copy(segment, PIXEL, 0, pixels, 0, width * height);
+  }
+
+  /**
+   * Wrap the frame in a TYPE_INT_ARGB-compatible image without copying it, for ImageIO encoders. The image reads the
+   * frame through a custom DataBuffer, so it is only valid while the frame's arena is open.
+   */
+  public BufferedImage toImage()
+  {
+    DirectColorModel cm = (DirectColorModel)ColorModel.getRGBdefault();
+    SampleModel sm = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, cm.getMasks());
+    WritableRaster raster = Raster.createWritableRaster(sm, new SegmentDataBuffer(this), null);
+    return new BufferedImage(cm, raster, false, null);
+  }
+
+  /** Single-bank int DataBuffer over an off-heap frame. */
+  private static class SegmentDataBuffer extends DataBuffer
+  {
+    private final OffHeapFrame frame;
+
+    SegmentDataBuffer(OffHeapFrame frame)
+    {
+      super(DataBuffer.TYPE_INT, frame.width * frame.height);
+      this.frame = frame;
+    }
+
+    public int getElem(int bank, int i)
+    {
+      return frame.get(i);
+    }
+
+    public void setElem(int bank, int i, int val)
+    {
+      frame.set(i, val);
+    }
+  }
+}
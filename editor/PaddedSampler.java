@@ -0,0 +1,87 @@
+import java.awt.image.*;
+
+/**
+ * Bilinear sampler over a copy of the image with a replicated border of \a guard pixels on every side. Positions within
+ * the guard band read their four taps directly, without clamping; positions beyond it fall back to the clamped
+ * BilinearSampler path. Both give the same result, since a replicated border interpolates to the edge pixel just like a
+ * clamped position does, and the padded position is x * 256 in fixed point offset by a whole number of pixels, so its
+ * taps and 8-bit fraction are exactly those of the clamped path.
+ *
+ * The guard is sized from the largest displacement of a compiled segment set (see guardFor): every mapped position is a
+ * weighted average of segment displacements, so it lies within that distance of the image.
+ */
+public class PaddedSampler extends BilinearSampler
+{
+  /** Largest guard band, in pixels. */
+  public static final int MAX_GUARD = 128;
+
+  /** Border width in pixels. */
+  public final int guard;
+
+  // Padded copy, (width + 2 guard) x (height + 2 guard)
+  private final int[] padded;
+  private final int stride;
+
+  // Bound of the padded fixed-point coordinates with both taps inside the padded copy
+  private final double limit_x, limit_y;
+
+  public PaddedSampler(BufferedImage image, int guard)
+  {
+    this(pixels(toARGB(image)), image.getWidth(), image.getHeight(), guard);
+  }
+
+  public PaddedSampler(int[] pixels, int w, int h, int guard)
+  {
+    super(pixels, w, h);
+    this.guard = Math.max(1, Math.min(guard, MAX_GUARD));
+    this.stride = w + 2 * this.guard;
+    this.limit_x = (w - 1 + 2 * this.guard) * 256.0;
+    this.limit_y = (h - 1 + 2 * this.guard) * 256.0;
+
+    int g = this.guard;
+    padded = new int[stride * (h + 2 * g)];
+    for (int row = 0; row < h + 2 * g; ++row)
+    {
+      int src = Math.max(0, Math.min(row - g, h - 1)) * w;
+      int dst = row * stride;
+      for (int col = 0; col < g; ++col)
+      {
+        padded[dst + col] = pixels[src];
+        padded[dst + g + w + col] = pixels[src + w - 1];
+      }
+      System.arraycopy(pixels, src, padded, dst + g, w);
+    }
+  }
+
+  public int sample(double x, double y)
+  {
+    // fixed point from x itself, exactly as the clamped path takes it; (x + guard) * 256 could round differently
+    double px = Math.floor(x * 256) + (guard << 8), py = Math.floor(y * 256) + (guard << 8);
+    if (!(px >= 0 && py >= 0 && px < limit_x && py < limit_y))
+      return super.sample(x, y);
+
+    int xf = (int)px, yf = (int)py;
+    int off = (yf >> 8) * stride + (xf >> 8);
+    return lerp2(padded[off], padded[off + 1], padded[off + stride], padded[off + stride + 1], xf & 0xff, yf & 0xff);
+  }
+
+  /** Guard band covering every position a plan maps pixels of a w x h image to, at most MAX_GUARD. */
+  public static int guardFor(SegmentPlan plan, int w, int h)
+  {
+    // displacements are affine in the pixel, so the largest is at a corner
+    double[] corner_x = { 0, w - 1, 0, w - 1 }, corner_y = { 0, 0, h - 1, h - 1 };
+    double max = 0;
+    for (int i = 0; i < plan.size; ++i)
+      for (int c = 0; c < 4; ++c)
+      {
+        double px = corner_x[c] - plan.dst_x[i], py = corner_y[c] - plan.dst_y[i];
+        double u = px * plan.dst_ux[i] + py * plan.dst_uy[i];
+        double v = px * plan.dst_vx[i] + py * plan.dst_vy[i];
+        double disx = plan.src_x[i] + u * plan.src_dx[i] + v * plan.src_px[i] - corner_x[c];
+        double disy = plan.src_y[i] + u * plan.src_dy[i] + v * plan.src_py[i] - corner_y[c];
+        max = Math.max(max, Math.sqrt(disx * disx + disy * disy));
+      }
+
+    return (int)Math.min(MAX_GUARD, Math.ceil(max) + 2);
+  }
+}
@@ -0,0 +1,320 @@
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Renders a morph sequence by running the compiled morph binary once per frame,
+ *
+ *   morph image1 image2 segments_file t output.png [a b p]
+ *
+ * with at most -workers processes at once, so a many-core machine is saturated without the Java engine. A frame whose
+ * process fails, times out or leaves no output is retried up to -retries times. Frames are rendered to temporary files
+ * and renamed to prefix000.png, prefix001.png, ... strictly in order, so frames appear in the output directory in
+ * sequence; only a frame that fails for good leaves a gap. Each frame's attempts and wall time are printed with -v and
+ * written as CSV with -timings.
+ */
+public class ProcessPoolRenderer
+{
+  // Command-line program arguments
+  private String input_source_image_name;
+  private String input_target_image_name;
+  private String input_correspondence_name;
+  private String output_prefix;
+  private int num_frames = 0;
+  private String a = "0.5", b = "1", p = "0.2";
+  private boolean explicit_parameters = false;
+  private String morph_binary = "../morph";
+  private int num_workers = Runtime.getRuntime().availableProcessors();
+  private int max_retries = 2;
+  private long timeout_s = 600;
+  private String timings_name = null;
+  private boolean print_verbose = false;
+
+  /** Outcome of one frame. */
+  private static class Frame
+  {
+    final int index;
+    final double t;
+    final File temp, output;
+    int attempts = 0;
+    long wall_ns = 0;
+    boolean ok = false;
+    String error;
+
+    Frame(int index, double t, File temp, File output)
+    {
+      this.index = index;
+      this.t = t;
+      this.temp = temp;
+      this.output = output;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Rendering
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Render all frames. Returns the number of frames that failed. */
+  public int render() throws InterruptedException, IOException
+  {
+    File prefix = new File(output_prefix);
+    File dir = (prefix.getParentFile() != null ? prefix.getParentFile() : new File("."));
+    File log_dir = createTempDirectory(dir);
+
+    Frame[] frames = new Frame[num_frames];
+    for (int i = 0; i < num_frames; ++i)
+    {
+      String name = String.format("%03d", i);
+      frames[i] = new Frame(i, (num_frames > 1 ? (double)i / (num_frames - 1) : 0.0),
+                            new File(log_dir, name + ".png"), new File(output_prefix + name + ".png"));
+    }
+
+    ExecutorService workers = Executors.newFixedThreadPool(num_workers);
+    ExecutorCompletionService<Frame> completion = new ExecutorCompletionService<Frame>(workers);
+    for (final Frame frame : frames)
+      completion.submit(new Callable<Frame>() {
+        public Frame call() throws InterruptedException { renderFrame(frame); return frame; }
+      });
+
+    // Reassemble in order: rename each frame once it and all frames before it are done
+    int failed = 0, next = 0;
+    boolean[] done = new boolean[num_frames];
+    try
+    {
+      for (int i = 0; i < num_frames; ++i)
+      {
+        Frame frame = getFrame(completion.take());
+        done[frame.index] = true;
+        report(frame);
+
+        for (; next < num_frames && done[next]; ++next)
+        {
+          Frame ready = frames[next];
+          if (ready.ok && !ready.temp.renameTo(ready.output))
+          {
+            ready.ok = false;
+            ready.error = "could not move " + ready.temp + " to " + ready.output;
+            System.err.println("Frame " + ready.index + " failed: " + ready.error);
+          }
+          if (!ready.ok)
+            failed++;
+        }
+      }
+    }
+    finally
+    {
+      workers.shutdownNow();
+    }
+
+    if (timings_name != null)
+      writeTimings(frames, timings_name);
+
+    // the logs of failed frames are kept for inspection
+    if (failed == 0)
+      deleteDirectory(log_dir);
+    else
+      System.err.println("Logs of failed frames are in " + log_dir);
+
+    return failed;
+  }
+
+  /** Run the morph binary for a frame until it produces the output or runs out of retries. */
+  private void renderFrame(Frame frame) throws InterruptedException
+  {
+    ArrayList<String> command = new ArrayList<String>();
+    command.add(morph_binary);
+    command.add(input_source_image_name);
+    command.add(input_target_image_name);
+    command.add(input_correspondence_name);
+    command.add(Double.toString(frame.t));
+    command.add(frame.temp.getPath());
+    if (explicit_parameters)
+    {
+      command.add(a);
+      command.add(b);
+      command.add(p);
+    }
+
+    File log = new File(frame.temp.getPath() + ".log");
+    long start = System.nanoTime();
+    while (!frame.ok && frame.attempts <= max_retries)
+    {
+      frame.attempts++;
+      frame.temp.delete();
+      try
+      {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        if (!process.waitFor(timeout_s, TimeUnit.SECONDS))
+        {
+          process.destroyForcibly().waitFor();
+          frame.error = "timed out after " + timeout_s + " s";
+        }
+        // morph exits with 0 even when it could not write the frame, so the output file is what counts
+        else if (process.exitValue() != 0)
+          frame.error = "exit status " + process.exitValue();
+        else if (!frame.temp.isFile() || frame.temp.length() == 0)
+          frame.error = "no output written, see " + log;
+        else
+        {
+          frame.ok = true;
+          frame.error = null;
+        }
+      }
+      catch (IOException e)
+      {
+        frame.error = e.getMessage();
+      }
+    }
+    frame.wall_ns = System.nanoTime() - start;
+    if (frame.ok)
+      log.delete();
+  }
+
+  private static Frame getFrame(Future<Frame> future) throws InterruptedException
+  {
+    try { return future.get(); }
+    catch (ExecutionException e) { throw new IllegalStateException("Frame worker failed", e.getCause()); }
+  }
+
+  private void report(Frame frame)
+  {
+    if (!frame.ok)
+      System.err.println("Frame " + frame.index + " failed after " + frame.attempts + " attempts: " + frame.error);
+    else if (print_verbose)
+      System.out.println("Rendered frame " + frame.index + " (t = " + frame.t + ") in " + frame.wall_ns / 1000000 + " ms"
+                       + (frame.attempts > 1 ? ", " + frame.attempts + " attempts" : ""));
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // File helpers
+  ////////////////////////////////////////////////////////////////////////
+
+  private static void writeTimings(Frame[] frames, String path) throws IOException
+  {
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+    writer.println("frame,t,attempts,wall_ms,ok");
+    for (Frame frame : frames)
+      writer.println(frame.index + "," + frame.t + "," + frame.attempts + "," + frame.wall_ns / 1e6 + "," + frame.ok);
+    writer.close();
+    if (writer.checkError())
+      throw new IOException("Could not write " + path);
+  }
+
+  /** Create a temporary directory next to the outputs, so the final renames stay on one file system. */
+  private static File createTempDirectory(File dir) throws IOException
+  {
+    File temp = File.createTempFile(".morph-frames", "", dir);
+    if (!temp.delete() || !temp.mkdir())
+      throw new IOException("Could not create a temporary directory in " + dir);
+    return temp;
+  }
+
+  private static void deleteDirectory(File dir)
+  {
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    dir.delete();
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Program argument parsing
+  ////////////////////////////////////////////////////////////////////////
+
+  private boolean parseArgs(String[] args)
+  {
+    int current_positional = 0;
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (args[i].equals("-v"))
+        print_verbose = true;
+      else if (args[i].equals("-morph"))
+        morph_binary = args[++i];
+      else if (args[i].equals("-workers"))
+        num_workers = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-retries"))
+        max_retries = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-timeout"))
+        timeout_s = Long.parseLong(args[++i]);
+      else if (args[i].equals("-timings"))
+        timings_name = args[++i];
+      else
+      {
+        switch (current_positional)
+        {
+          case 0: input_source_image_name = args[i]; break;
+          case 1: input_target_image_name = args[i]; break;
+          case 2: input_correspondence_name = args[i]; break;
+          case 3: num_frames = Integer.parseInt(args[i]); break;
+          case 4: output_prefix = args[i]; break;
+          case 5: a = Double.toString(Double.parseDouble(args[i])); break;
+          case 6: b = Double.toString(Double.parseDouble(args[i])); break;
+          case 7: p = Double.toString(Double.parseDouble(args[i])); explicit_parameters = true; break;
+          default: System.err.println("Invalid program argument: " + args[i]); return false;
+        }
+        current_positional++;
+      }
+    }
+
+    if (current_positional != 5 && current_positional != 8)
+    {
+      System.err.println("Usage: ProcessPoolRenderer image1 image2 segments_file num_frames output_prefix [a b p]"
+                       + " [-morph path] [-workers n] [-retries n] [-timeout seconds] [-timings out.csv] [-v]");
+      return false;
+    }
+
+    if (num_frames < 1 || num_workers < 1 || max_retries < 0 || timeout_s < 1)
+    {
+      System.err.println("Frame and worker counts and the timeout must be positive");
+      return false;
+    }
+
+    // Return OK status
+    return true;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Main program
+  ////////////////////////////////////////////////////////////////////////
+
+  public static void main(String[] args) throws InterruptedException, IOException
+  {
+    ProcessPoolRenderer renderer = new ProcessPoolRenderer();
+    if (!renderer.parseArgs(args))
+      System.exit(-1);
+
+    if (!new File(renderer.morph_binary).canExecute())
+    {
+      System.err.println("No morph binary at " + renderer.morph_binary + " (build it with make, or pass -morph path)");
+      System.exit(-1);
+    }
+
+    // Check the inputs once here rather than in every process
+    BufferedImage img1 = Editor.loadImage(renderer.input_source_image_name);
+    BufferedImage img2 = Editor.loadImage(renderer.input_target_image_name);
+    if (img1 == null || img2 == null)
+    {
+      System.err.println("Could not load input images");
+      System.exit(-1);
+    }
+
+    Vector<Line2D.Double> segments = new Vector<Line2D.Double>();
+    if (!Editor.loadCorrespondences(renderer.input_correspondence_name, img1, img2, segments))
+    {
+      System.err.println("Could not read correspondence file " + renderer.input_correspondence_name);
+      System.exit(-1);
+    }
+
+    long start = System.nanoTime();
+    int failed = renderer.render();
+    double secs = (System.nanoTime() - start) / 1e9;
+    System.out.println("Rendered " + (renderer.num_frames - failed) + " frames in " + secs + " s ("
+                     + (renderer.num_frames - failed) / secs + " frames/s)");
+
+    if (failed > 0)
+      System.exit(-1);
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Reference distortion kernel: one pixel at a time, one segment at a time. Along a row u and v are affine in x, so rows
+ * step them by dst_ux and dst_vx per column instead of evaluating the dot products, re-anchoring them to the direct form
+ * every ANCHOR_COLUMNS columns to bound the rounding drift. mapPixel is the direct form.
+ */
+public class ScalarDistortKernel implements DistortKernel
+{
+  // Columns between exact evaluations of u and v
+  static final int ANCHOR_COLUMNS = 64;
+
+  private final boolean approximate_pow;
+
+  // Evaluator of the last exponent; its fields are final, so threads may share it without locking
+  private WeightEvaluator weights;
+
+  // Per-segment u, v and weight ratio rows
+  private static final ScratchRows scratch = new ScratchRows();
+
+  public ScalarDistortKernel()
+  {
+    this(false);
+  }
+
+  /** With \a approximate_pow, weights with b other than 0, 1, 2 use WeightEvaluator.approximatePow. */
+  public ScalarDistortKernel(boolean approximate_pow)
+  {
+    this.approximate_pow = approximate_pow;
+  }
+
+  public void mapRow(SegmentPlan plan, double a, double b, int row, int col0, int col1, double[] map_x, double[] map_y)
+  {
+    final double[] dst_x = plan.dst_x, dst_y = plan.dst_y, dst_ex = plan.dst_ex, dst_ey = plan.dst_ey;
+    final double[] dst_ux = plan.dst_ux, dst_vx = plan.dst_vx;
+    final double[] src_x = plan.src_x, src_y = plan.src_y;
+    final double[] src_dx = plan.src_dx, src_dy = plan.src_dy, src_px = plan.src_px, src_py = plan.src_py;
+    final double[] len_p = plan.len_p;
+
+    final WeightEvaluator weights = weightsFor(b);
+    final double[][] rows = scratch.get(2, plan.size);
+    final double[] u = rows[0], v = rows[1];
+    final double y = row;
+    for (int col = col0; col < col1; ++col)
+    {
+      final double x = col;
+      if ((col - col0) % ANCHOR_COLUMNS == 0)
+        anchor(plan, x, y, u, v);
+
+      double wtsum = 0, dissumx = 0, dissumy = 0;
+      for (int i = 0; i < plan.size; ++i)
+      {
+        double ui = u[i], vi = v[i];
+        u[i] = ui + dst_ux[i];
+        v[i] = vi + dst_vx[i];
+
+        // displacement to the point interpolated wrt to the src line
+        double disx = src_x[i] + ui * src_dx[i] + vi * src_px[i] - x;
+        double disy = src_y[i] + ui * src_dy[i] + vi * src_py[i] - y;
+
+        double dist;
+        if (ui < 0)
+        {
+          double px = x - dst_x[i], py = y - dst_y[i];
+          dist = Math.sqrt(px * px + py * py);
+        }
+        else if (ui > 1)
+        {
+          double qx = x - dst_ex[i], qy = y - dst_ey[i];
+          dist = Math.sqrt(qx * qx + qy * qy);
+        }
+        else
+          dist = Math.abs(vi);
+
+        double wt = weights.weight(len_p[i], a + dist);
+        dissumx += disx * wt;
+        dissumy += disy * wt;
+        wtsum += wt;
+      }
+
+      int k = col - col0;
+      map_x[k] = x + dissumx / wtsum;
+      map_y[k] = y + dissumy / wtsum;
+    }
+  }
+
+  /** Evaluates u, v and the distance once per segment for both distortions. */
+  public void mapRowPair(SegmentPlan plan1, SegmentPlan plan2, double a, double b, int row, int col0, int col1,
+                         double[] map1_x, double[] map1_y, double[] map2_x, double[] map2_y)
+  {
+    final double[] dst_x = plan1.dst_x, dst_y = plan1.dst_y, dst_ex = plan1.dst_ex, dst_ey = plan1.dst_ey;
+    final double[] dst_ux = plan1.dst_ux, dst_vx = plan1.dst_vx;
+    final double[] src1_x = plan1.src_x, src1_y = plan1.src_y;
+    final double[] src1_dx = plan1.src_dx, src1_dy = plan1.src_dy, src1_px = plan1.src_px, src1_py = plan1.src_py;
+    final double[] src2_x = plan2.src_x, src2_y = plan2.src_y;
+    final double[] src2_dx = plan2.src_dx, src2_dy = plan2.src_dy, src2_px = plan2.src_px, src2_py = plan2.src_py;
+
+    // the weights differ only by the source length term
+    final WeightEvaluator weights = weightsFor(b);
+    final double[] len_p = plan1.len_p;
+    final double[][] rows = scratch.get(3, plan1.size);
+    final double[] ratio = rows[0], us = rows[1], vs = rows[2];
+    for (int i = 0; i < plan1.size; ++i)
+      ratio[i] = weights.weight(plan2.len_p[i], len_p[i]);
+
+    final double y = row;
+    for (int col = col0; col < col1; ++col)
+    {
+      final double x = col;
+      if ((col - col0) % ANCHOR_COLUMNS == 0)
+        anchor(plan1, x, y, us, vs);
+
+      double wtsum1 = 0, dissumx1 = 0, dissumy1 = 0;
+      double wtsum2 = 0, dissumx2 = 0, dissumy2 = 0;
+
+      for (int i = 0; i < plan1.size; ++i)
+      {
+        double u = us[i], v = vs[i];
+        us[i] = u + dst_ux[i];
+        vs[i] = v + dst_vx[i];
+
+        double dist;
+        if (u < 0)
+        {
+          double px = x - dst_x[i], py = y - dst_y[i];
+          dist = Math.sqrt(px * px + py * py);
+        }
+        else if (u > 1)
+        {
+          double qx = x - dst_ex[i], qy = y - dst_ey[i];
+          dist = Math.sqrt(qx * qx + qy * qy);
+        }
+        else
+          dist = Math.abs(v);
+
+        double wt1 = weights.weight(len_p[i], a + dist);
+        double wt2 = wt1 * ratio[i];
+
+        dissumx1 += (src1_x[i] + u * src1_dx[i] + v * src1_px[i] - x) * wt1;
+        dissumy1 += (src1_y[i] + u * src1_dy[i] + v * src1_py[i] - y) * wt1;
+        wtsum1 += wt1;
+        dissumx2 += (src2_x[i] + u * src2_dx[i] + v * src2_px[i] - x) * wt2;
+        dissumy2 += (src2_y[i] + u * src2_dy[i] + v * src2_py[i] - y) * wt2;
+        wtsum2 += wt2;
+      }
+
+      int k = col - col0;
+      map1_x[k] = x + dissumx1 / wtsum1;
+      map1_y[k] = y + dissumy1 / wtsum1;
+      map2_x[k] = x + dissumx2 / wtsum2;
+      map2_y[k] = y + dissumy2 / wtsum2;
+    }
+  }
+
+  /** Evaluator of exponent \a b, made again only when b changes rather than on every row. */
+  private WeightEvaluator weightsFor(double b)
+  {
+    WeightEvaluator current = weights;
+    if (current == null || current.b != b)
+      weights = current = new WeightEvaluator(b, approximate_pow);
+    return current;
+  }
+
+  /** Set u[i], v[i] to the exact line coordinates of pixel (x, y) for every segment. */
+  static void anchor(SegmentPlan plan, double x, double y, double[] u, double[] v)
+  {
+    for (int i = 0; i < plan.size; ++i)
+    {
+      double px = x - plan.dst_x[i], py = y - plan.dst_y[i];
+      u[i] = px * plan.dst_ux[i] + py * plan.dst_uy[i];
+      v[i] = px * plan.dst_vx[i] + py * plan.dst_vy[i];
+    }
+  }
+
+  /** Write the source position of pixel (x, y) to map_x[k], map_y[k], evaluating u and v directly. */
+  static void mapPixel(SegmentPlan plan, double a, WeightEvaluator weights, double x, double y, double[] map_x,
+                       double[] map_y, int k)
+  {
+    final double[] dst_x = plan.dst_x, dst_y = plan.dst_y, dst_ex = plan.dst_ex, dst_ey = plan.dst_ey;
+    final double[] dst_ux = plan.dst_ux, dst_uy = plan.dst_uy, dst_vx = plan.dst_vx, dst_vy = plan.dst_vy;
+    final double[] src_x = plan.src_x, src_y = plan.src_y;
+    final double[] src_dx = plan.src_dx, src_dy = plan.src_dy, src_px = plan.src_px, src_py = plan.src_py;
+    final double[] len_p = plan.len_p;
+
+    double wtsum = 0, dissumx = 0, dissumy = 0;
+
+    for (int i = 0; i < plan.size; ++i)
+    {
+      double px = x - dst_x[i], py = y - dst_y[i];
+      double u = px * dst_ux[i] + py * dst_uy[i];
+      double v = px * dst_vx[i] + py * dst_vy[i];
+
+      // point interpolated wrt to the src line
+      double ix = src_x[i] + u * src_dx[i] + v * src_px[i];
+      double iy = src_y[i] + u * src_dy[i] + v * src_py[i];
+
+      // weight of the displacement, from the distance to the interpolated segment
+      double dist;
+      if (u < 0)
+        dist = Math.sqrt(px * px + py * py);
+      else if (u > 1)
+      {
+        double qx = x - dst_ex[i], qy = y - dst_ey[i];
+        dist = Math.sqrt(qx * qx + qy * qy);
+      }
+      else
+        dist = Math.abs(v);
+
+      double wt = weights.weight(len_p[i], a + dist);
+      dissumx += (ix - x) * wt;
+      dissumy += (iy - y) * wt;
+      wtsum += wt;
+    }
+
+    map_x[k] = x + dissumx / wtsum;
+    map_y[k] = y + dissumy / wtsum;
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * Per-thread scratch arrays for kernels and band workers that would otherwise allocate a few rows of doubles, or a row
+ * of ints such as a traversal stack, on every call. Each user keeps its own instance, so rows handed out by one are never in use by another on the same thread.
+ * The rows may be longer than requested and hold stale values.
+ */
+final class ScratchRows
+{
+  private final ThreadLocal<double[][]> rows = new ThreadLocal<double[][]>();
+  private final ThreadLocal<int[]> ints = new ThreadLocal<int[]>();
+
+  /** Get \a count rows of at least \a length doubles for the calling thread. */
+  double[][] get(int count, int length)
+  {
+    double[][] current = rows.get();
+    if (current == null || current.length < count || current[0].length < length)
+    {
+      // grow to cover both this and earlier requests, so alternating shapes do not reallocate
+      if (current != null)
+      {
+        count = Math.max(count, current.length);
+        length = Math.max(length, current[0].length);
+      }
+      current = new double[count][Math.max(length, 1)];
+      rows.set(current);
+    }
+    return current;
+  }
+
+  /** Get a row of at least \a length ints for the calling thread. */
+  int[] getInts(int length)
+  {
+    int[] current = ints.get();
+    if (current == null || current.length < length)
+    {
+      current = new int[length];
+      ints.set(current);
+    }
+    return current;
+  }
+}
@@ -0,0 +1,153 @@
+import java.awt.geom.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Restricts the segments evaluated for a tile of pixels to those that matter there. For each tile the distance from the
+ * tile to every interpolated segment is bounded from below and above, which bounds each segment's weight
+ * (len^p / (a + dist))^b at any pixel of the tile. A segment is dropped when its largest possible weight is below
+ * \a epsilon times the smallest possible total weight of the tile.
+ *
+ * The dropped segments' share of the total weight at any pixel of the tile is at most the sum of their ratios, which is
+ * recorded as the tile's error bound; a dropped share f moves a source position by at most f times the spread of the
+ * segment displacements. Since the weight falls off only as dist^-b, the far field of a dense set can add up to a large
+ * share even when every single segment is negligible, so check maxDroppedWeight when choosing epsilon.
+ */
+public class SegmentCuller
+{
+  /** Size in pixels of the square tiles. */
+  public final int tile;
+
+  /** Largest relative weight of a dropped segment. */
+  public final double epsilon;
+
+  // Statistics of the last renders, reset by resetStats
+  private final DoubleAccumulator max_dropped = new DoubleAccumulator(Math::max, 0);
+  private final LongAdder num_tiles = new LongAdder();
+  private final LongAdder num_candidates = new LongAdder();
+
+  public SegmentCuller(int tile, double epsilon)
+  {
+    if (tile < 1 || epsilon < 0 || epsilon >= 1)
+      throw new IllegalArgumentException("Tile size must be positive and epsilon in [0, 1)");
+
+    this.tile = tile;
+    this.epsilon = epsilon;
+  }
+
+  /** Clear the statistics. */
+  public void resetStats()
+  {
+    max_dropped.reset();
+    num_tiles.reset();
+    num_candidates.reset();
+  }
+
+  /** Largest bound, over all tiles, on the share of the total weight carried by the dropped segments. */
+  public double maxDroppedWeight() { return max_dropped.get(); }
+
+  /** Average number of segments kept per tile. */
+  public double meanCandidates()
+  {
+    long tiles = num_tiles.sum();
+    return (tiles == 0 ? 0 : (double)num_candidates.sum() / tiles);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Culling
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Get the plans restricted to the segments that matter for pixels [col0, col1) x [row0, row1). \a plan2 may be null;
+   * otherwise it must share the interpolated segments of \a plan1 (see DistortKernel.mapRowPair), and both subsets keep
+   * the same segments, those that matter for either distortion.
+   */
+  public SegmentPlan[] cull(SegmentPlan plan1, SegmentPlan plan2, double a, double b, int col0, int row0, int col1,
+                            int row1)
+  {
+    int n = plan1.size;
+    double x0 = col0, y0 = row0, x1 = col1 - 1, y1 = row1 - 1;
+
+    // area covered by the pixels, never empty, for the lower distance bound
+    double ax0 = x0 - 0.5, ay0 = y0 - 0.5, ax1 = x1 + 0.5, ay1 = y1 + 0.5;
+    Rectangle2D.Double rect = new Rectangle2D.Double(ax0, ay0, ax1 - ax0, ay1 - ay0);
+
+    // weight bounds of each segment over the tile, up to the source length term
+    double[] near = new double[n], far = new double[n];
+    double min_total1 = 0, min_total2 = 0;
+    for (int i = 0; i < n; ++i)
+    {
+      double sx = plan1.dst_x[i], sy = plan1.dst_y[i], ex = plan1.dst_ex[i], ey = plan1.dst_ey[i];
+
+      // the distance to a segment is convex, so it is largest at a corner
+      double dmax = Math.max(Math.max(Line2D.ptSegDist(sx, sy, ex, ey, x0, y0), Line2D.ptSegDist(sx, sy, ex, ey, x1, y0)),
+                             Math.max(Line2D.ptSegDist(sx, sy, ex, ey, x0, y1), Line2D.ptSegDist(sx, sy, ex, ey, x1, y1)));
+
+      double dmin = 0;
+      if (!rect.contains(sx, sy) && !rect.intersectsLine(sx, sy, ex, ey))
+      {
+        // closest points are a corner of the area or an endpoint of the segment
+        dmin = Math.min(Math.min(Line2D.ptSegDist(sx, sy, ex, ey, ax0, ay0), Line2D.ptSegDist(sx, sy, ex, ey, ax1, ay0)),
+                        Math.min(Line2D.ptSegDist(sx, sy, ex, ey, ax0, ay1), Line2D.ptSegDist(sx, sy, ex, ey, ax1, ay1)));
+        dmin = Math.min(dmin, Math.min(rectDist(ax0, ay0, ax1, ay1, sx, sy), rectDist(ax0, ay0, ax1, ay1, ex, ey)));
+      }
+
+      near[i] = (b == 1 ? 1 / (a + dmin) : Math.pow(a + dmin, -b));
+      far[i] = (b == 1 ? 1 / (a + dmax) : Math.pow(a + dmax, -b));
+      min_total1 += lengthTerm(plan1, i, b) * far[i];
+      if (plan2 != null)
+        min_total2 += lengthTerm(plan2, i, b) * far[i];
+    }
+
+    // keep a segment if it can reach epsilon of the total in either distortion
+    int[] kept = new int[n];
+    int count = 0, strongest = 0;
+    double dropped1 = 0, dropped2 = 0, strongest_ratio = -1;
+    for (int i = 0; i < n; ++i)
+    {
+      double ratio1 = lengthTerm(plan1, i, b) * near[i] / min_total1;
+      double ratio2 = (plan2 == null ? 0 : lengthTerm(plan2, i, b) * near[i] / min_total2);
+      if (ratio1 >= epsilon || ratio2 >= epsilon)
+        kept[count++] = i;
+      else
+      {
+        dropped1 += ratio1;
+        dropped2 += ratio2;
+        if (Math.max(ratio1, ratio2) > strongest_ratio)
+        {
+          strongest = i;
+          strongest_ratio = Math.max(ratio1, ratio2);
+        }
+      }
+    }
+
+    // many equally weak segments: keep the strongest so the weights do not sum to zero
+    if (count == 0 && n > 0)
+    {
+      kept[count++] = strongest;
+      dropped1 -= lengthTerm(plan1, strongest, b) * near[strongest] / min_total1;
+      if (plan2 != null)
+        dropped2 -= lengthTerm(plan2, strongest, b) * near[strongest] / min_total2;
+    }
+
+    max_dropped.accumulate(Math.max(dropped1, dropped2));
+    num_tiles.increment();
+    num_candidates.add(count);
+
+    if (count == n)
+      return new SegmentPlan[] { plan1, plan2 };
+    return new SegmentPlan[] { plan1.subset(kept, count), (plan2 == null ? null : plan2.subset(kept, count)) };
+  }
+
+  private static double lengthTerm(SegmentPlan plan, int i, double b)
+  {
+    return (b == 1 ? plan.len_p[i] : Math.pow(plan.len_p[i], b));
+  }
+
+  /** Distance from (x, y) to the rectangle [x0, x1] x [y0, y1]. */
+  private static double rectDist(double x0, double y0, double x1, double y1, double x, double y)
+  {
+    double dx = Math.max(0, Math.max(x0 - x, x - x1));
+    double dy = Math.max(0, Math.max(y0 - y, y - y1));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+}
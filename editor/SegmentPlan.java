@@ -0,0 +1,172 @@
+import java.awt.geom.*;
+import java.util.*;
+
+/**
+ * A correspondence set compiled for one distortion at one time t, stored as parallel primitive arrays so the per-pixel
+ * loop is pure arithmetic. Segment i is the pair (start, end) interpolated to t (the "destination" line, on which u and v
+ * are measured) and the start segment itself (the "source" line, into which the pixel is mapped back).
+ *
+ * For a pixel P, with D = P - dst_start:
+ *   u = D . dst_u,   v = D . dst_v
+ *   source position = src_start + u * src_dir + v * src_perp
+ *   weight = (len_p / (a + dist)) ^ b
+ * where dist is the distance from P to the destination segment: |v| when 0 <= u <= 1, else the distance to its nearest
+ * endpoint.
+ */
+public final class SegmentPlan
+{
+  /** Number of segments. */
+  public final int size;
+
+  /** Time the plan was compiled for. */
+  public final double t;
+
+  /** Whether the plan is a subset of a compiled plan, made per tile by a SegmentCuller. */
+  public final boolean subset;
+
+  // Destination line: start and end points, direction / length^2 and perpendicular / length
+  final double[] dst_x, dst_y;
+  final double[] dst_ex, dst_ey;
+  final double[] dst_ux, dst_uy;
+  final double[] dst_vx, dst_vy;
+
+  // Source line: start point, direction and perpendicular / length
+  final double[] src_x, src_y;
+  final double[] src_dx, src_dy;
+  final double[] src_px, src_py;
+
+  // Source line length raised to p
+  final double[] len_p;
+
+  private SegmentPlan(int size, double t, boolean subset)
+  {
+    this.size = size;
+    this.t = t;
+    this.subset = subset;
+    dst_x = new double[size];  dst_y = new double[size];
+    dst_ex = new double[size]; dst_ey = new double[size];
+    dst_ux = new double[size]; dst_uy = new double[size];
+    dst_vx = new double[size]; dst_vy = new double[size];
+    src_x = new double[size];  src_y = new double[size];
+    src_dx = new double[size]; src_dy = new double[size];
+    src_px = new double[size]; src_py = new double[size];
+    len_p = new double[size];
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Compilation
+  ////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Pack the Editor's interleaved segments (source at even index, target at odd index) into 8 doubles per pair, in the
+   * order of a correspondence file line: asx asy aex aey bsx bsy bex bey. A trailing unmatched segment is ignored.
+   */
+  public static double[] packPairs(Vector<Line2D.Double> segments)
+  {
+    int num_pairs = segments.size() / 2;
+    double[] pairs = new double[8 * num_pairs];
+    for (int i = 0; i < 2 * num_pairs; ++i)
+    {
+      Line2D.Double seg = segments.elementAt(i);
+      pairs[4 * i]     = seg.x1;
+      pairs[4 * i + 1] = seg.y1;
+      pairs[4 * i + 2] = seg.x2;
+      pairs[4 * i + 3] = seg.y2;
+    }
+    return pairs;
+  }
+
+  /** Compile the Editor's interleaved segments, see compile(double[], int, boolean, double, double). */
+  public static SegmentPlan compile(Vector<Line2D.Double> segments, boolean reverse, double t, double p)
+  {
+    return compile(packPairs(segments), segments.size() / 2, reverse, t, p);
+  }
+
+  /**
+   * Compile \a num_pairs packed pairs (see packPairs). Segments are interpolated from start to end by t; the first segment
+   * of each pair is the start unless \a reverse is set. Pairs with a zero-length source, target or interpolated segment
+   * are dropped since they have no defined direction; the same pairs are dropped either way round, so the plans of both
+   * distortions of a morph line up segment for segment.
+   */
+  public static SegmentPlan compile(double[] pairs, int num_pairs, boolean reverse, double t, double p)
+  {
+    int s0 = (reverse ? 4 : 0), e0 = (reverse ? 0 : 4);
+
+    int num_valid = 0;
+    for (int i = 0; i < num_pairs; ++i)
+      if (isValidPair(pairs, i, s0, e0, t))
+        num_valid++;
+
+    SegmentPlan plan = new SegmentPlan(num_valid, t, false);
+    int k = 0;
+    for (int i = 0; i < num_pairs; ++i)
+    {
+      if (!isValidPair(pairs, i, s0, e0, t))
+        continue;
+
+      int base = 8 * i;
+      double sx1 = pairs[base + s0], sy1 = pairs[base + s0 + 1], sx2 = pairs[base + s0 + 2], sy2 = pairs[base + s0 + 3];
+      double ex1 = pairs[base + e0], ey1 = pairs[base + e0 + 1], ex2 = pairs[base + e0 + 2], ey2 = pairs[base + e0 + 3];
+
+      // interpolated line
+      double dx1 = (1 - t) * sx1 + t * ex1, dy1 = (1 - t) * sy1 + t * ey1;
+      double dx2 = (1 - t) * sx2 + t * ex2, dy2 = (1 - t) * sy2 + t * ey2;
+      double ddx = dx2 - dx1, ddy = dy2 - dy1;
+      double dlen2 = ddx * ddx + ddy * ddy;
+      double dlen = Math.sqrt(dlen2);
+
+      plan.dst_x[k] = dx1;
+      plan.dst_y[k] = dy1;
+      plan.dst_ex[k] = dx2;
+      plan.dst_ey[k] = dy2;
+      plan.dst_ux[k] = ddx / dlen2;
+      plan.dst_uy[k] = ddy / dlen2;
+      plan.dst_vx[k] = -ddy / dlen;
+      plan.dst_vy[k] = ddx / dlen;
+
+      // source line
+      double sdx = sx2 - sx1, sdy = sy2 - sy1;
+      double slen = Math.sqrt(sdx * sdx + sdy * sdy);
+
+      plan.src_x[k] = sx1;
+      plan.src_y[k] = sy1;
+      plan.src_dx[k] = sdx;
+      plan.src_dy[k] = sdy;
+      plan.src_px[k] = -sdy / slen;
+      plan.src_py[k] = sdx / slen;
+      plan.len_p[k] = (p == 0 ? 1 : p == 1 ? slen : Math.pow(slen, p));
+
+      k++;
+    }
+
+    return plan;
+  }
+
+  /** Get the plan restricted to segments indices[0 .. count-1], in that order. */
+  SegmentPlan subset(int[] indices, int count)
+  {
+    SegmentPlan plan = new SegmentPlan(count, t, true);
+    for (int k = 0; k < count; ++k)
+    {
+      int i = indices[k];
+      plan.dst_x[k] = dst_x[i];   plan.dst_y[k] = dst_y[i];
+      plan.dst_ex[k] = dst_ex[i]; plan.dst_ey[k] = dst_ey[i];
+      plan.dst_ux[k] = dst_ux[i]; plan.dst_uy[k] = dst_uy[i];
+      plan.dst_vx[k] = dst_vx[i]; plan.dst_vy[k] = dst_vy[i];
+      plan.src_x[k] = src_x[i];   plan.src_y[k] = src_y[i];
+      plan.src_dx[k] = src_dx[i]; plan.src_dy[k] = src_dy[i];
+      plan.src_px[k] = src_px[i]; plan.src_py[k] = src_py[i];
+      plan.len_p[k] = len_p[i];
+    }
+    return plan;
+  }
+
+  private static boolean isValidPair(double[] pairs, int i, int s0, int e0, double t)
+  {
+    int base = 8 * i;
+    double sdx = pairs[base + s0 + 2] - pairs[base + s0], sdy = pairs[base + s0 + 3] - pairs[base + s0 + 1];
+    double edx = pairs[base + e0 + 2] - pairs[base + e0], edy = pairs[base + e0 + 3] - pairs[base + e0 + 1];
+    double ddx = (1 - t) * sdx + t * edx, ddy = (1 - t) * sdy + t * edy;
+    return (sdx != 0 || sdy != 0) && (edx != 0 || edy != 0) && (ddx != 0 || ddy != 0);
+  }
+}
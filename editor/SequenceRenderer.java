@@ -0,0 +1,489 @@
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.imageio.*;
+
+/**
+ * Renders a morph sequence to numbered PNG frames with the Java engine. Frames go through a pipeline
+ *
+ *   distort(img1) || distort(img2)  ->  blend  ->  encode
+ *
+ * with bounded queues between the stages and at most \a in_flight frames alive at any time, so all cores stay busy while
+ * peak memory is a fixed number of frames. With -fused the distort stage renders the blended frame in one pass and the
+ * blend stage passes it through. Frame buffers come from a FramePool and go back to it once a frame is encoded, so
+ * after the first in_flight frames the pipeline reuses the same buffers. With -off_heap the frames are OffHeapFrames in a
+ * shared FrameArena instead, handed from stage to stage by reference and freed together at the end (JDK 21 needs
+ * --enable-preview for this). -backend native renders them with the C++ engine of libmorph.so (see NativeMorph), which
+ * reads and writes the off-heap frames in place; it implies -off_heap.
+ */
+public class SequenceRenderer
+{
+  // Command-line program arguments
+  private String input_source_image_name;
+  private String input_target_image_name;
+  private String input_correspondence_name;
+  private String output_prefix;
+  private int num_frames = 0;
+  private double a = 0.5, b = 1, p = 0.2;
+  private String backend = "scalar";
+  private int num_distorters = Runtime.getRuntime().availableProcessors();
+  private int num_encoders = 2;
+  private int in_flight = 0;
+  private boolean fused = false;
+  private boolean fast_pow = false;
+  private boolean off_heap = false;
+  private boolean print_verbose = false;
+
+  /** One frame moving through the pipeline; END marks the end of the sequence. */
+  private static class Frame
+  {
+    final int index;
+    final double t;
+    int[] distorted1, distorted2, blended;
+
+    // With -off_heap: the two distorted images, then the blend in off1
+    OffHeapFrame off1, off2;
+    boolean blended_off_heap = false;
+    long start;
+    boolean done = false;
+
+    Frame(int index, double t)
+    {
+      this.index = index;
+      this.t = t;
+    }
+  }
+
+  private static final Frame END = new Frame(-1, 0);
+
+  // Pipeline state
+  private MorphEngine engine;
+  private final FramePool frame_pool = new FramePool();
+  private FrameArena arena;
+  private NativeMorph native_morph;
+  private OffHeapFrame native1, native2;
+  private final ArrayDeque<OffHeapFrame> free_off_heap = new ArrayDeque<OffHeapFrame>();
+  private BilinearSampler src1, src2;
+  private double[] pairs;
+  private int num_pairs;
+  private Semaphore frame_permits;
+  private BlockingQueue<Frame> distort_queue, blend_queue, encode_queue;
+  private final AtomicInteger failures = new AtomicInteger();
+
+  ////////////////////////////////////////////////////////////////////////
+  // Rendering
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Render all frames. Returns the number of frames that failed. */
+  public int render(BufferedImage img1, BufferedImage img2, Vector<Line2D.Double> segments) throws InterruptedException
+  {
+    prepare(img1, img2, segments);
+    return renderFrames();
+  }
+
+  /** Set up the samplers and the engine for the morph of \a img1 into \a img2. */
+  void prepare(BufferedImage img1, BufferedImage img2, Vector<Line2D.Double> segments)
+  {
+    int w = img1.getWidth(), h = img1.getHeight();
+    if (img2.getWidth() != w || img2.getHeight() != h)
+      throw new IllegalArgumentException("Both input images must be the same dimensions");
+
+    pairs = SegmentPlan.packPairs(segments);
+    num_pairs = segments.size() / 2;
+
+    engine = new MorphEngine();
+    engine.setParameters(a, b, p);
+    if (backend.equals("native"))
+    {
+      // the C++ engine samples the images itself, and clamps at the border
+      String library = System.getProperty("morph.library", NativeMorph.DEFAULT_LIBRARY);
+      try { native_morph = new NativeMorph(library); }
+      catch (IllegalArgumentException e)
+      {
+        throw new IllegalArgumentException("Could not load native morph library " + library + ": " + e.getMessage());
+      }
+      src1 = new BilinearSampler(img1);
+      src2 = new BilinearSampler(img2);
+      return;
+    }
+
+    // guard bands for the end of each image's motion, where its displacements are largest
+    int guard1 = PaddedSampler.guardFor(SegmentPlan.compile(pairs, num_pairs, false, 1, p), w, h);
+    int guard2 = PaddedSampler.guardFor(SegmentPlan.compile(pairs, num_pairs, true, 1, p), w, h);
+    src1 = new PaddedSampler(img1, guard1);
+    src2 = new PaddedSampler(img2, guard2);
+
+    DistortKernel kernel = MorphEngine.createKernel(backend, fast_pow);
+    if (kernel == null)
+      throw new IllegalArgumentException("Unknown backend: " + backend);
+    engine.setKernel(kernel);
+  }
+
+  /**
+   * Run all frames of the prepared morph through the pipeline. Returns the number of frames that failed. May run again,
+   * reusing the frame buffers of the previous run.
+   */
+  int renderFrames() throws InterruptedException
+  {
+    failures.set(0);
+    if (off_heap)
+      arena = new FrameArena(true);
+    if (native_morph != null)
+    {
+      native1 = arena.copyOf(src1.pixels, src1.width, src1.height);
+      native2 = arena.copyOf(src2.pixels, src2.width, src2.height);
+    }
+    if (in_flight <= 0)
+      in_flight = num_distorters + num_encoders + 1;
+    frame_permits = new Semaphore(in_flight);
+    distort_queue = new ArrayBlockingQueue<Frame>(in_flight + num_distorters);
+    blend_queue = new ArrayBlockingQueue<Frame>(in_flight + 1);
+    encode_queue = new ArrayBlockingQueue<Frame>(in_flight + num_encoders);
+
+    // Stages
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < num_distorters; ++i)
+      threads.add(startStage("distort-" + i, distort_queue, new FrameStage() {
+        public void process(Frame frame) throws Exception { distortFrame(frame); blend_queue.put(frame); }
+      }));
+    Thread blender = startStage("blend", blend_queue, new FrameStage() {
+      public void process(Frame frame) throws Exception { blendFrame(frame); encode_queue.put(frame); }
+    });
+    ArrayList<Thread> encoders = new ArrayList<Thread>();
+    for (int i = 0; i < num_encoders; ++i)
+      encoders.add(startStage("encode-" + i, encode_queue, new FrameStage() {
+        public void process(Frame frame) throws Exception { encodeFrame(frame); }
+      }));
+
+    // Feed frames, at most in_flight at once
+    for (int i = 0; i < num_frames; ++i)
+    {
+      frame_permits.acquire();
+      Frame frame = new Frame(i, (num_frames > 1 ? (double)i / (num_frames - 1) : 0.0));
+      frame.start = System.nanoTime();
+      distort_queue.put(frame);
+    }
+
+    // Shut the stages down in order
+    for (int i = 0; i < num_distorters; ++i)
+      distort_queue.put(END);
+    for (Thread thread : threads)
+      thread.join();
+    blend_queue.put(END);
+    blender.join();
+    for (int i = 0; i < num_encoders; ++i)
+      encode_queue.put(END);
+    for (Thread thread : encoders)
+      thread.join();
+
+    if (off_heap)
+    {
+      free_off_heap.clear();
+      arena.close();
+    }
+    if (print_verbose)
+      System.out.println("Frame buffers: " + frame_pool.allocated() + " allocated, " + frame_pool.reused() + " reused");
+
+    return failures.get();
+  }
+
+  /** Work done by a stage on each frame of its input queue. */
+  private interface FrameStage
+  {
+    void process(Frame frame) throws Exception;
+  }
+
+  private Thread startStage(String name, final BlockingQueue<Frame> input, final FrameStage stage)
+  {
+    Thread thread = new Thread(new Runnable() {
+      public void run()
+      {
+        try
+        {
+          for (Frame frame = input.take(); frame != END; frame = input.take())
+          {
+            try { stage.process(frame); }
+            catch (Exception e)
+            {
+              System.err.println("Frame " + frame.index + " failed: " + e);
+              failures.incrementAndGet();
+              finishFrame(frame);
+            }
+          }
+        }
+        catch (InterruptedException e) {}
+      }
+    }, name);
+    thread.start();
+    return thread;
+  }
+
+  private void distortFrame(Frame frame) throws Exception
+  {
+    // img1 moves from 0 to t, img2 moves from 1 to t, both at once
+    final SegmentPlan plan1 = SegmentPlan.compile(pairs, num_pairs, false, frame.t, p);
+    final SegmentPlan plan2 = SegmentPlan.compile(pairs, num_pairs, true, 1 - frame.t, p);
+    final int w = src1.width, h = src1.height;
+    if (off_heap)
+    {
+      distortOffHeap(frame, plan1, plan2);
+      return;
+    }
+    if (fused)
+    {
+      frame.blended = engine.morph(src1, src2, plan1, plan2, frame.t, frame_pool.acquire(w, h, 4));
+      return;
+    }
+
+    frame.distorted1 = frame_pool.acquire(w, h, 4);
+    frame.distorted2 = frame_pool.acquire(w, h, 4);
+    final int[] distorted2 = frame.distorted2;
+    ForkJoinTask<int[]> distort2 = ForkJoinPool.commonPool().submit(new Callable<int[]>() {
+      public int[] call() { return engine.distort(src2, plan2, distorted2); }
+    });
+    // the buffers go back to the pool on failure, so never leave distort2 writing to one
+    try { engine.distort(src1, plan1, frame.distorted1); }
+    finally { distort2.quietlyJoin(); }
+    distort2.get();
+  }
+
+  /** distortFrame for off-heap frames. */
+  private void distortOffHeap(Frame frame, SegmentPlan plan1, final SegmentPlan plan2) throws Exception
+  {
+    frame.off1 = acquireOffHeap();
+    if (native_morph != null)
+    {
+      if (fused)
+      {
+        native_morph.morph(native1, native2, pairs, num_pairs, frame.t, a, b, p, frame.off1);
+        frame.blended_off_heap = true;
+        return;
+      }
+      frame.off2 = acquireOffHeap();
+      native_morph.distort(native1, pairs, num_pairs, false, frame.t, a, b, p, frame.off1);
+      native_morph.distort(native2, pairs, num_pairs, true, 1 - frame.t, a, b, p, frame.off2);
+      return;
+    }
+
+    if (fused)
+    {
+      engine.morph(src1, src2, plan1, plan2, frame.t, frame.off1);
+      frame.blended_off_heap = true;
+      return;
+    }
+
+    frame.off2 = acquireOffHeap();
+    final OffHeapFrame distorted2 = frame.off2;
+    ForkJoinTask<OffHeapFrame> distort2 = ForkJoinPool.commonPool().submit(new Callable<OffHeapFrame>() {
+      public OffHeapFrame call() { return engine.distort(src2, plan2, distorted2); }
+    });
+    try { engine.distort(src1, plan1, frame.off1); }
+    finally { distort2.quietlyJoin(); }
+    distort2.get();
+  }
+
+  private void blendFrame(Frame frame)
+  {
+    if (frame.blended != null || frame.blended_off_heap)
+      return;
+
+    if (off_heap)
+    {
+      if (native_morph != null)
+        native_morph.blend(frame.off1, frame.off2, 1 - frame.t, frame.off1);
+      else
+        engine.blend(frame.off1, frame.off2, 1 - frame.t, frame.off1);
+      releaseOffHeap(frame.off2);
+      frame.off2 = null;
+      frame.blended_off_heap = true;
+      return;
+    }
+
+    // in place, over the first distorted image
+    int w = src1.width, h = src1.height;
+    frame.blended = engine.blend(frame.distorted1, frame.distorted2, w, h, 1 - frame.t, frame.distorted1);
+    frame_pool.release(frame.distorted2, w, h, 4);
+    frame.distorted1 = null;
+    frame.distorted2 = null;
+  }
+
+  private void encodeFrame(Frame frame) throws IOException
+  {
+    String path = output_prefix + String.format("%03d", frame.index) + ".png";
+    BufferedImage image = (off_heap ? frame.off1.toImage() : BilinearSampler.wrap(frame.blended, src1.width, src1.height));
+    if (!ImageIO.write(image, "png", new File(path)))
+      throw new IOException("No PNG writer");
+
+    finishFrame(frame);
+    if (print_verbose)
+      System.out.println("Wrote " + path + " (t = " + frame.t + ") in " + (System.nanoTime() - frame.start) / 1000000
+                       + " ms");
+  }
+
+  /** Return the frame's buffers to the pool and let the next frame in. */
+  private void finishFrame(Frame frame)
+  {
+    if (frame.done)
+      return;
+
+    int w = src1.width, h = src1.height;
+    frame_pool.release(frame.distorted1, w, h, 4);
+    frame_pool.release(frame.distorted2, w, h, 4);
+    frame_pool.release(frame.blended, w, h, 4);
+    frame.distorted1 = frame.distorted2 = frame.blended = null;
+    releaseOffHeap(frame.off1);
+    releaseOffHeap(frame.off2);
+    frame.off1 = frame.off2 = null;
+    frame.done = true;
+    frame_permits.release();
+  }
+
+  /** Get a free off-heap frame, allocating one in the arena if none is free. */
+  private OffHeapFrame acquireOffHeap()
+  {
+    synchronized (free_off_heap)
+    {
+      if (!free_off_heap.isEmpty())
+        return free_off_heap.pop();
+    }
+    return arena.allocate(src1.width, src1.height);
+  }
+
+  private void releaseOffHeap(OffHeapFrame frame)
+  {
+    if (frame == null)
+      return;
+    synchronized (free_off_heap)
+    {
+      free_off_heap.push(frame);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Program argument parsing
+  ////////////////////////////////////////////////////////////////////////
+
+  boolean parseArgs(String[] args)
+  {
+    int current_positional = 0;
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (args[i].equals("-v"))
+        print_verbose = true;
+      else if (args[i].equals("-threads"))
+        num_distorters = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-encoders"))
+        num_encoders = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-in_flight"))
+        in_flight = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-fused"))
+        fused = true;
+      else if (args[i].equals("-backend"))
+        backend = args[++i];
+      else if (args[i].equals("-fast_pow"))
+        fast_pow = true;
+      else if (args[i].equals("-off_heap"))
+        off_heap = true;
+      else
+      {
+        switch (current_positional)
+        {
+          case 0: input_source_image_name = args[i]; break;
+          case 1: input_target_image_name = args[i]; break;
+          case 2: input_correspondence_name = args[i]; break;
+          case 3: num_frames = Integer.parseInt(args[i]); break;
+          case 4: output_prefix = args[i]; break;
+          case 5: a = Double.parseDouble(args[i]); break;
+          case 6: b = Double.parseDouble(args[i]); break;
+          case 7: p = Double.parseDouble(args[i]); break;
+          default: System.err.println("Invalid program argument: " + args[i]); return false;
+        }
+        current_positional++;
+      }
+    }
+
+    if (current_positional != 5 && current_positional != 8)
+    {
+      System.err.println("Usage: SequenceRenderer image1 image2 segments_file num_frames output_prefix [a b p]"
+                       + " [-threads n] [-encoders n] [-in_flight n] [-fused] [-backend scalar|simd|native]"
+                       + " [-fast_pow] [-off_heap] [-v]");
+      return false;
+    }
+
+    if (num_frames < 1 || num_distorters < 1 || num_encoders < 1)
+    {
+      System.err.println("Frame and thread counts must be positive");
+      return false;
+    }
+
+    // the native engine works on off-heap frames, whose classes are compiled with preview features on JDK 21 and do
+    // not load without them
+    off_heap |= backend.equals("native");
+    if (off_heap)
+    {
+      try { Class.forName("FrameArena", false, SequenceRenderer.class.getClassLoader()); }
+      catch (ClassNotFoundException | LinkageError e)
+      {
+        System.err.println("-off_heap and -backend native require --enable-preview on JDK 21"
+                         + " (java --enable-preview SequenceRenderer ...)");
+        return false;
+      }
+    }
+
+    // every frame has its own t, so specialized kernels would be generated per frame and never reused
+    if (!backend.equals("scalar") && !backend.equals("simd") && !backend.equals("native"))
+    {
+      System.err.println("Backend must be scalar, simd or native: " + backend);
+      return false;
+    }
+
+    // Return OK status
+    return true;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Main program
+  ////////////////////////////////////////////////////////////////////////
+
+  public static void main(String[] args) throws InterruptedException
+  {
+    SequenceRenderer renderer = new SequenceRenderer();
+    if (!renderer.parseArgs(args))
+      System.exit(-1);
+
+    // Decode
+    BufferedImage img1 = Editor.loadImage(renderer.input_source_image_name);
+    BufferedImage img2 = Editor.loadImage(renderer.input_target_image_name);
+    if (img1 == null || img2 == null)
+    {
+      System.err.println("Could not load input images");
+      System.exit(-1);
+    }
+
+    Vector<Line2D.Double> segments = new Vector<Line2D.Double>();
+    if (!Editor.loadCorrespondences(renderer.input_correspondence_name, img1, img2, segments))
+    {
+      System.err.println("Could not read correspondence file " + renderer.input_correspondence_name);
+      System.exit(-1);
+    }
+
+    long start = System.nanoTime();
+    int failed;
+    try { failed = renderer.render(img1, img2, segments); }
+    catch (IllegalArgumentException e)
+    {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+      return;
+    }
+    double secs = (System.nanoTime() - start) / 1e9;
+    System.out.println("Rendered " + (renderer.num_frames - failed) + " frames in " + secs + " s ("
+                     + (renderer.num_frames - failed) / secs + " frames/s)");
+
+    if (failed > 0)
+      System.exit(-1);
+  }
+}
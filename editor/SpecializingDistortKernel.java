@@ -0,0 +1,353 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.util.*;
+import javax.tools.*;
+
+/**
+ * Distortion kernel that generates, for each compiled segment set of up to MAX_SEGMENTS segments, a class with the segment
+ * loop fully unrolled and every segment constant written as a literal, so the JIT sees straight-line arithmetic. The
+ * source is compiled in memory with the system Java compiler and loaded as a hidden class, which can be unloaded once it
+ * drops out of the cache. Kernels are cached by the contents of their plans, so re-rendering the same segments at the
+ * same time (previews, a/b sweeps) reuses them.
+ *
+ * Larger sets, subset plans (a SegmentCuller makes a new one per tile, which would never hit the cache), runs without
+ * a system compiler (a JRE without the jdk.compiler module) and failed compilations use the fallback kernel.
+ */
+public class SpecializingDistortKernel implements DistortKernel
+{
+  /** Largest segment count that is specialized. */
+  public static final int MAX_SEGMENTS = 128;
+
+  // Segments unrolled per generated method, about 2.3 KB of bytecode, well below the JIT's 8000 byte method limit
+  private static final int CHUNK_SEGMENTS = 8;
+
+  // Generated kernels kept
+  private static final int CACHE_SIZE = 16;
+
+  private final DistortKernel fallback;
+  private final boolean approximate_pow;
+  private final boolean verbose;
+
+  // Kernels by plan contents, least recently used first; null values mark sets that could not be compiled
+  private final LinkedHashMap<PlanKey, DistortKernel> cache = new LinkedHashMap<PlanKey, DistortKernel>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<PlanKey, DistortKernel> eldest) { return size() > CACHE_SIZE; }
+  };
+
+  // Last lookup, to skip the lock and hashing the plans on every row
+  private volatile Lookup last;
+
+  /**
+   * Specialize kernels with weights as WeightEvaluator(b, \a approximate_pow) evaluates them, which should match
+   * \a fallback.
+   */
+  public SpecializingDistortKernel(DistortKernel fallback, boolean approximate_pow, boolean verbose)
+  {
+    this.fallback = fallback;
+    this.approximate_pow = approximate_pow;
+    this.verbose = verbose;
+  }
+
+  public void mapRow(SegmentPlan plan, double a, double b, int row, int col0, int col1, double[] map_x, double[] map_y)
+  {
+    DistortKernel kernel = kernelFor(plan, null);
+    (kernel != null ? kernel : fallback).mapRow(plan, a, b, row, col0, col1, map_x, map_y);
+  }
+
+  public void mapRowPair(SegmentPlan plan1, SegmentPlan plan2, double a, double b, int row, int col0, int col1,
+                         double[] map1_x, double[] map1_y, double[] map2_x, double[] map2_y)
+  {
+    DistortKernel kernel = kernelFor(plan1, plan2);
+    (kernel != null ? kernel : fallback).mapRowPair(plan1, plan2, a, b, row, col0, col1, map1_x, map1_y, map2_x, map2_y);
+  }
+
+  /** Get the specialized kernel of the plans, generating it if needed; null to use the fallback. */
+  private DistortKernel kernelFor(SegmentPlan plan1, SegmentPlan plan2)
+  {
+    if (plan1.subset)
+      return null;
+
+    Lookup lookup = last;
+    if (lookup != null && lookup.plan1 == plan1 && lookup.plan2 == plan2)
+      return lookup.kernel;
+    return lookUp(plan1, plan2);
+  }
+
+  /** Find or generate the kernel of the plans in the cache, and remember it as the last lookup. */
+  private synchronized DistortKernel lookUp(SegmentPlan plan1, SegmentPlan plan2)
+  {
+    Lookup lookup = last;
+    if (lookup != null && lookup.plan1 == plan1 && lookup.plan2 == plan2)
+      return lookup.kernel;
+
+    DistortKernel kernel = null;
+    if (plan1.size <= MAX_SEGMENTS)
+    {
+      PlanKey key = new PlanKey(plan1, plan2);
+      if (cache.containsKey(key))
+        kernel = cache.get(key);
+      else
+      {
+        long start = System.nanoTime();
+        kernel = generate(plan1, plan2);
+        cache.put(key, kernel);
+        if (verbose && kernel != null)
+          System.out.println("Generated kernel for " + plan1.size + " segments in " + (System.nanoTime() - start) / 1000000
+                           + " ms");
+      }
+    }
+
+    last = new Lookup(plan1, plan2, kernel);
+    return kernel;
+  }
+
+  /** Plans and the kernel found for them. */
+  private static class Lookup
+  {
+    final SegmentPlan plan1, plan2;
+    final DistortKernel kernel;
+
+    Lookup(SegmentPlan plan1, SegmentPlan plan2, DistortKernel kernel)
+    {
+      this.plan1 = plan1;
+      this.plan2 = plan2;
+      this.kernel = kernel;
+    }
+  }
+
+  /** Plan contents, compared by value. */
+  private static class PlanKey
+  {
+    final double[] values;
+    final int hash;
+
+    PlanKey(SegmentPlan plan1, SegmentPlan plan2)
+    {
+      double[][] arrays = arrays(plan1);
+      double[][] arrays2 = (plan2 == null ? new double[0][] : arrays(plan2));
+      values = new double[(arrays.length + arrays2.length) * plan1.size + 1];
+      int k = 0;
+      for (double[] array : arrays)
+        for (int i = 0; i < plan1.size; ++i)
+          values[k++] = array[i];
+      for (double[] array : arrays2)
+        for (int i = 0; i < plan1.size; ++i)
+          values[k++] = array[i];
+      values[k] = (plan2 == null ? 0 : 1);
+      hash = Arrays.hashCode(values);
+    }
+
+    private static double[][] arrays(SegmentPlan plan)
+    {
+      return new double[][] { plan.dst_x, plan.dst_y, plan.dst_ex, plan.dst_ey, plan.dst_ux, plan.dst_uy, plan.dst_vx,
+                              plan.dst_vy, plan.src_x, plan.src_y, plan.src_dx, plan.src_dy, plan.src_px, plan.src_py,
+                              plan.len_p };
+    }
+
+    public boolean equals(Object other)
+    {
+      return other instanceof PlanKey && Arrays.equals(values, ((PlanKey)other).values);
+    }
+
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Generation
+  ////////////////////////////////////////////////////////////////////////
+
+  private static final String CLASS_NAME = "GeneratedDistortKernel";
+
+  /** Generate, compile and load the kernel of the plans; null on failure. */
+  private DistortKernel generate(SegmentPlan plan1, SegmentPlan plan2)
+  {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null)
+    {
+      if (verbose)
+        System.err.println("No system Java compiler, kernels are not specialized");
+      return null;
+    }
+
+    try
+    {
+      byte[] bytes = compile(compiler, source(plan1, plan2, approximate_pow));
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+      return (DistortKernel)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+    }
+    catch (Throwable e)
+    {
+      if (verbose)
+        System.err.println("Could not generate a specialized kernel: " + e);
+      return null;
+    }
+  }
+
+  /** Compile one source file in memory against the running class path. */
+  private static byte[] compile(JavaCompiler compiler, final String source) throws IOException
+  {
+    JavaFileObject input = new SimpleJavaFileObject(URI.create("string:///" + CLASS_NAME + ".java"),
+                                                    JavaFileObject.Kind.SOURCE) {
+      public CharSequence getCharContent(boolean ignore_errors) { return source; }
+    };
+
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+    JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(standard) {
+      public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                 FileObject sibling)
+      {
+        return new SimpleJavaFileObject(URI.create("bytes:///" + name + ".class"), kind) {
+          public OutputStream openOutputStream() { return output; }
+        };
+      }
+    };
+
+    StringWriter errors = new StringWriter();
+    List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none");
+    boolean ok = compiler.getTask(errors, manager, null, options, null, Collections.singletonList(input)).call();
+    manager.close();
+    if (!ok)
+      throw new IOException(errors.toString());
+
+    return output.toByteArray();
+  }
+
+  /**
+   * Source of a kernel with the plans' segments unrolled, evaluating weights with or without \a approximate_pow;
+   * mapRowPair is only specialized when \a plan2 is set. Segments are unrolled in chunks of CHUNK_SEGMENTS, each a
+   * method with its own column loop adding to per-column sums, so every method stays small enough to be compiled.
+   */
+  static String source(SegmentPlan plan1, SegmentPlan plan2, boolean approximate_pow)
+  {
+    int num_chunks = (plan1.size + CHUNK_SEGMENTS - 1) / CHUNK_SEGMENTS;
+    StringBuilder s = new StringBuilder();
+    s.append("public final class " + CLASS_NAME + " implements DistortKernel {\n");
+
+    // Per-column sums and the evaluator of the last exponent, kept across rows as in ScalarDistortKernel
+    s.append("private static final ScratchRows scratch = new ScratchRows();\n");
+    s.append("private WeightEvaluator weights;\n");
+    s.append("private WeightEvaluator weightsFor(double b) {\n");
+    s.append("  WeightEvaluator current = weights;\n");
+    s.append("  if (current == null || current.b != b) weights = current = new WeightEvaluator(b, " + approximate_pow
+           + ");\n");
+    s.append("  return current;\n");
+    s.append("}\n");
+
+    // mapRow: sums wt, dx, dy per column
+    s.append("public void mapRow(SegmentPlan plan, double a, double b, int row, int col0, int col1, double[] map_x,"
+           + " double[] map_y) {\n");
+    s.append("  final WeightEvaluator weights = weightsFor(b);\n");
+    s.append("  final double[] sums = scratch.get(1, 6 * (col1 - col0))[0];\n");
+    s.append("  java.util.Arrays.fill(sums, 0, 3 * (col1 - col0), 0.0);\n");
+    for (int chunk = 0; chunk < num_chunks; ++chunk)
+      s.append("  row" + chunk + "(weights, a, row, col0, col1, sums);\n");
+    s.append("  for (int col = col0, k = 0; col < col1; ++col, k += 3) {\n");
+    s.append("    map_x[col - col0] = col + sums[k + 1] / sums[k];\n");
+    s.append("    map_y[col - col0] = row + sums[k + 2] / sums[k];\n");
+    s.append("  }\n");
+    s.append("}\n");
+
+    for (int chunk = 0; chunk < num_chunks; ++chunk)
+    {
+      s.append("private static void row" + chunk + "(WeightEvaluator weights, double a, int row, int col0, int col1,"
+             + " double[] sums) {\n");
+      s.append("  final double y = row;\n");
+      s.append("  for (int col = col0, k = 0; col < col1; ++col, k += 3) {\n");
+      s.append("    final double x = col;\n");
+      s.append("    double wtsum = sums[k], dissumx = sums[k + 1], dissumy = sums[k + 2];\n");
+      for (int i = chunk * CHUNK_SEGMENTS; i < Math.min((chunk + 1) * CHUNK_SEGMENTS, plan1.size); ++i)
+      {
+        s.append("    {\n");
+        appendDistance(s, plan1, i);
+        s.append("      double wt = weights.weight(" + c(plan1.len_p[i]) + ", a + dist);\n");
+        appendDisplacement(s, plan1, i, "", "wt");
+        s.append("    }\n");
+      }
+      s.append("    sums[k] = wtsum; sums[k + 1] = dissumx; sums[k + 2] = dissumy;\n");
+      s.append("  }\n");
+      s.append("}\n");
+    }
+
+    if (plan2 == null)
+      return s.append("}\n").toString();
+
+    // mapRowPair: sums wt, dx, dy of both distortions per column
+    s.append("public void mapRowPair(SegmentPlan plan1, SegmentPlan plan2, double a, double b, int row, int col0,"
+           + " int col1, double[] map1_x, double[] map1_y, double[] map2_x, double[] map2_y) {\n");
+    s.append("  final WeightEvaluator weights = weightsFor(b);\n");
+    s.append("  final double[] sums = scratch.get(1, 6 * (col1 - col0))[0];\n");
+    s.append("  java.util.Arrays.fill(sums, 0, 6 * (col1 - col0), 0.0);\n");
+    for (int chunk = 0; chunk < num_chunks; ++chunk)
+      s.append("  pair" + chunk + "(weights, a, row, col0, col1, sums);\n");
+    s.append("  for (int col = col0, k = 0; col < col1; ++col, k += 6) {\n");
+    s.append("    map1_x[col - col0] = col + sums[k + 1] / sums[k];\n");
+    s.append("    map1_y[col - col0] = row + sums[k + 2] / sums[k];\n");
+    s.append("    map2_x[col - col0] = col + sums[k + 4] / sums[k + 3];\n");
+    s.append("    map2_y[col - col0] = row + sums[k + 5] / sums[k + 3];\n");
+    s.append("  }\n");
+    s.append("}\n");
+
+    for (int chunk = 0; chunk < num_chunks; ++chunk)
+    {
+      int i0 = chunk * CHUNK_SEGMENTS, i1 = Math.min(i0 + CHUNK_SEGMENTS, plan1.size);
+      s.append("private static void pair" + chunk + "(WeightEvaluator weights, double a, int row, int col0, int col1,"
+             + " double[] sums) {\n");
+      for (int i = i0; i < i1; ++i)
+        s.append("  final double ratio" + i + " = weights.weight(" + c(plan2.len_p[i]) + ", " + c(plan1.len_p[i]) + ");\n");
+      s.append("  final double y = row;\n");
+      s.append("  for (int col = col0, k = 0; col < col1; ++col, k += 6) {\n");
+      s.append("    final double x = col;\n");
+      s.append("    double wtsum1 = sums[k], dissumx1 = sums[k + 1], dissumy1 = sums[k + 2];\n");
+      s.append("    double wtsum2 = sums[k + 3], dissumx2 = sums[k + 4], dissumy2 = sums[k + 5];\n");
+      for (int i = i0; i < i1; ++i)
+      {
+        s.append("    {\n");
+        appendDistance(s, plan1, i);
+        s.append("      double wt1 = weights.weight(" + c(plan1.len_p[i]) + ", a + dist);\n");
+        s.append("      double wt2 = wt1 * ratio" + i + ";\n");
+        appendDisplacement(s, plan1, i, "1", "wt1");
+        appendDisplacement(s, plan2, i, "2", "wt2");
+        s.append("    }\n");
+      }
+      s.append("    sums[k] = wtsum1; sums[k + 1] = dissumx1; sums[k + 2] = dissumy1;\n");
+      s.append("    sums[k + 3] = wtsum2; sums[k + 4] = dissumx2; sums[k + 5] = dissumy2;\n");
+      s.append("  }\n");
+      s.append("}\n");
+    }
+
+    return s.append("}\n").toString();
+  }
+
+  /** Declare u, v and dist of segment i, see ScalarDistortKernel.mapPixel. */
+  private static void appendDistance(StringBuilder s, SegmentPlan plan, int i)
+  {
+    s.append("      double px = x - " + c(plan.dst_x[i]) + ", py = y - " + c(plan.dst_y[i]) + ";\n");
+    s.append("      double u = px * " + c(plan.dst_ux[i]) + " + py * " + c(plan.dst_uy[i]) + ";\n");
+    s.append("      double v = px * " + c(plan.dst_vx[i]) + " + py * " + c(plan.dst_vy[i]) + ";\n");
+    s.append("      double dist;\n");
+    s.append("      if (u < 0) dist = Math.sqrt(px * px + py * py);\n");
+    s.append("      else if (u > 1) { double qx = x - " + c(plan.dst_ex[i]) + ", qy = y - " + c(plan.dst_ey[i])
+           + "; dist = Math.sqrt(qx * qx + qy * qy); }\n");
+    s.append("      else dist = Math.abs(v);\n");
+  }
+
+  /** Accumulate the displacement of segment i of a plan into the sums with \a suffix, weighted by \a wt. */
+  private static void appendDisplacement(StringBuilder s, SegmentPlan plan, int i, String suffix, String wt)
+  {
+    s.append("      dissumx" + suffix + " += (" + c(plan.src_x[i]) + " + u * " + c(plan.src_dx[i]) + " + v * "
+           + c(plan.src_px[i]) + " - x) * " + wt + ";\n");
+    s.append("      dissumy" + suffix + " += (" + c(plan.src_y[i]) + " + u * " + c(plan.src_dy[i]) + " + v * "
+           + c(plan.src_py[i]) + " - y) * " + wt + ";\n");
+    s.append("      wtsum" + suffix + " += " + wt + ";\n");
+  }
+
+  /** Exact double literal. */
+  private static String c(double value)
+  {
+    return "(" + Double.toString(value) + ")";
+  }
+}
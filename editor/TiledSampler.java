@@ -0,0 +1,77 @@
+import java.awt.image.*;
+
+/**
+ * Bilinear sampler over a copy of the image stored as TILE x TILE blocks, each block row-major and the blocks row-major.
+ * Inverse-mapped positions wander in two dimensions under rotation and shear, which in a row-major image touches a new
+ * cache line for nearly every row; within a block they stay in a few kB. Each block also stores the first column and row
+ * of its right and lower neighbours, so the four taps of a sample always come from one block.
+ *
+ * Like PaddedSampler, the copy has a replicated border of \a guard pixels, inside which taps are read without clamping;
+ * positions beyond it fall back to the clamped BilinearSampler path with the same results.
+ */
+public class TiledSampler extends BilinearSampler
+{
+  /** Block size in pixels, a power of two. */
+  public static final int TILE = 16;
+
+  private static final int TILE_SHIFT = 4;
+  private static final int TILE_MASK = TILE - 1;
+
+  // Stored block, with the neighbours' apron column and row
+  private static final int TILE_STRIDE = TILE + 1;
+  private static final int TILE_AREA = TILE_STRIDE * TILE_STRIDE;
+
+  /** Border width in pixels. */
+  public final int guard;
+
+  private final int[] tiles;
+  private final int tiles_x;
+
+  // Bound of the padded fixed-point coordinates with both taps inside the padded image
+  private final double limit_x, limit_y;
+
+  public TiledSampler(BufferedImage image, int guard)
+  {
+    this(pixels(toARGB(image)), image.getWidth(), image.getHeight(), guard);
+  }
+
+  public TiledSampler(int[] pixels, int w, int h, int guard)
+  {
+    super(pixels, w, h);
+    this.guard = Math.max(1, Math.min(guard, PaddedSampler.MAX_GUARD));
+    int g = this.guard;
+    int padded_w = w + 2 * g, padded_h = h + 2 * g;
+    this.limit_x = (padded_w - 1) * 256.0;
+    this.limit_y = (padded_h - 1) * 256.0;
+
+    tiles_x = (padded_w + TILE - 1) / TILE;
+    int tiles_y = (padded_h + TILE - 1) / TILE;
+    tiles = new int[tiles_x * tiles_y * TILE_AREA];
+    for (int ty = 0; ty < tiles_y; ++ty)
+      for (int tx = 0; tx < tiles_x; ++tx)
+      {
+        int base = (ty * tiles_x + tx) * TILE_AREA;
+        for (int ly = 0; ly < TILE_STRIDE; ++ly)
+        {
+          int src = Math.max(0, Math.min(ty * TILE + ly - g, h - 1)) * w;
+          for (int lx = 0; lx < TILE_STRIDE; ++lx)
+            tiles[base + ly * TILE_STRIDE + lx] = pixels[src + Math.max(0, Math.min(tx * TILE + lx - g, w - 1))];
+        }
+      }
+  }
+
+  public int sample(double x, double y)
+  {
+    // fixed point from x itself, exactly as the clamped path takes it; (x + guard) * 256 could round differently
+    double px = Math.floor(x * 256) + (guard << 8), py = Math.floor(y * 256) + (guard << 8);
+    if (!(px >= 0 && py >= 0 && px < limit_x && py < limit_y))
+      return super.sample(x, y);
+
+    int xf = (int)px, yf = (int)py;
+    int col = xf >> 8, row = yf >> 8;
+    int off = ((row >> TILE_SHIFT) * tiles_x + (col >> TILE_SHIFT)) * TILE_AREA
+            + (row & TILE_MASK) * TILE_STRIDE + (col & TILE_MASK);
+    return lerp2(tiles[off], tiles[off + 1], tiles[off + TILE_STRIDE], tiles[off + TILE_STRIDE + 1], xf & 0xff,
+                 yf & 0xff);
+  }
+}
@@ -0,0 +1,90 @@
+import jdk.incubator.vector.*;
+
+/**
+ * Distortion kernel on the incubating Vector API: evaluates one lane group of adjacent columns (4 or 8 doubles depending
+ * on the CPU) against each segment. Needs the jdk.incubator.vector module at compile and run time; MorphEngine only loads
+ * this class when the module is present.
+ */
+public class VectorDistortKernel implements DistortKernel
+{
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  // Lane offsets 0, 1, 2, ...
+  private static final DoubleVector IOTA;
+  static
+  {
+    double[] iota = new double[SPECIES.length()];
+    for (int i = 0; i < iota.length; ++i)
+      iota[i] = i;
+    IOTA = DoubleVector.fromArray(SPECIES, iota, 0);
+  }
+
+  // Evaluator of the last exponent for the scalar tail columns, shared like ScalarDistortKernel's
+  private WeightEvaluator weights;
+
+  public void mapRow(SegmentPlan plan, double a, double b, int row, int col0, int col1, double[] map_x, double[] map_y)
+  {
+    final double[] dst_x = plan.dst_x, dst_y = plan.dst_y, dst_ex = plan.dst_ex, dst_ey = plan.dst_ey;
+    final double[] dst_ux = plan.dst_ux, dst_uy = plan.dst_uy, dst_vx = plan.dst_vx, dst_vy = plan.dst_vy;
+    final double[] src_x = plan.src_x, src_y = plan.src_y;
+    final double[] src_dx = plan.src_dx, src_dy = plan.src_dy, src_px = plan.src_px, src_py = plan.src_py;
+    final double[] len_p = plan.len_p;
+
+    final DoubleVector zero = DoubleVector.zero(SPECIES);
+    final double y = row;
+
+    int col = col0;
+    int bound = col0 + SPECIES.loopBound(col1 - col0);
+    for (; col < bound; col += SPECIES.length())
+    {
+      DoubleVector x = IOTA.add(col);
+      DoubleVector wtsum = zero, dissumx = zero, dissumy = zero;
+
+      for (int i = 0; i < plan.size; ++i)
+      {
+        double py = y - dst_y[i];
+        DoubleVector px = x.sub(dst_x[i]);
+        DoubleVector u = px.fma(dst_ux[i], py * dst_uy[i]);
+        DoubleVector v = px.fma(dst_vx[i], py * dst_vy[i]);
+
+        // displacement to the point interpolated wrt to the src line
+        DoubleVector qx = x.sub(src_x[i]);
+        double qy = y - src_y[i];
+        DoubleVector disx = u.mul(src_dx[i]).add(v.mul(src_px[i])).sub(qx);
+        DoubleVector disy = u.mul(src_dy[i]).add(v.mul(src_py[i])).sub(qy);
+
+        // distance from the interpolated segment: |v| when projecting onto it, else from the nearest endpoint
+        VectorMask<Double> before = u.lt(0), after = u.compare(VectorOperators.GT, 1);
+        DoubleVector nx = px.blend(x.sub(dst_ex[i]), after);
+        DoubleVector ny = DoubleVector.broadcast(SPECIES, py).blend(y - dst_ey[i], after);
+        DoubleVector end_dist = nx.fma(nx, ny.mul(ny)).sqrt();
+        DoubleVector dist = v.abs().blend(end_dist, before.or(after));
+
+        DoubleVector wt = DoubleVector.broadcast(SPECIES, len_p[i]).div(dist.add(a));
+        if (b == 2)
+          wt = wt.mul(wt);
+        else if (b != 1)
+          wt = wt.pow(b);
+
+        dissumx = disx.fma(wt, dissumx);
+        dissumy = disy.fma(wt, dissumy);
+        wtsum = wtsum.add(wt);
+      }
+
+      x.add(dissumx.div(wtsum)).intoArray(map_x, col - col0);
+      DoubleVector.broadcast(SPECIES, y).add(dissumy.div(wtsum)).intoArray(map_y, col - col0);
+    }
+
+    // remaining columns
+    for (; col < col1; ++col)
+      ScalarDistortKernel.mapPixel(plan, a, weightsFor(b), col, y, map_x, map_y, col - col0);
+  }
+
+  private WeightEvaluator weightsFor(double b)
+  {
+    WeightEvaluator current = weights;
+    if (current == null || current.b != b)
+      weights = current = new WeightEvaluator(b, false);
+    return current;
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Evaluates the Beier-Neely weight (len_p / (a + dist))^b for a fixed b. The length term len_p = length^p is already
+ * hoisted into SegmentPlan, so per pixel only the ratio and its power remain; b = 0, 1 and 2 reduce to a constant, a
+ * divide and a divide and a multiply. Other exponents use Math.pow, or approximatePow when approximation is requested.
+ */
+public final class WeightEvaluator
+{
+  /**
+   * Bound on the relative error of approximatePow(x, y) over x in [1e-12, 1e12] and |y| <= 4: the largest error measured
+   * over 2e8 random points, 2.25e-5 (at |y| near 4, as the error grows with |y|), rounded up.
+   */
+  public static final double APPROXIMATE_POW_MAX_ERROR = 2.3e-5;
+
+  // Modes
+  private static final int GENERAL = 0;
+  private static final int CONSTANT = 1;
+  private static final int LINEAR = 2;
+  private static final int SQUARE = 3;
+
+  /** Exponent. */
+  public final double b;
+
+  /** Whether general exponents use approximatePow. */
+  public final boolean approximate;
+
+  private final int mode;
+
+  public WeightEvaluator(double b, boolean approximate)
+  {
+    this.b = b;
+    this.approximate = approximate;
+    if (b == 0)
+      mode = CONSTANT;
+    else if (b == 1)
+      mode = LINEAR;
+    else if (b == 2)
+      mode = SQUARE;
+    else
+      mode = GENERAL;
+  }
+
+  /** Weight of a segment with length term \a len_p at a + dist = \a d. */
+  public double weight(double len_p, double d)
+  {
+    switch (mode)
+    {
+      case CONSTANT: return 1;
+      case LINEAR:   return len_p / d;
+      case SQUARE:   { double r = len_p / d; return r * r; }
+      default:       return (approximate ? approximatePow(len_p / d, b) : Math.pow(len_p / d, b));
+    }
+  }
+
+  /** d^-b, the falloff factor of a weight with the length term taken out. */
+  public double falloff(double d)
+  {
+    return weight(1, d);
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  // Approximate power
+  ////////////////////////////////////////////////////////////////////////
+
+  // Least-squares fits of log2(1 + f) on f in [-1/4, 1/2) and 2^z - 1 on z in [-1/2, 1/2]
+  private static final double L1 = 1.4426730953243472, L2 = -0.7211710900658207, L3 = 0.48214118752293295;
+  private static final double L4 = -0.36991095672169444, L5 = 0.28506272842084573, L6 = -0.1370456800518353;
+  private static final double E1 = 0.6931272666874349, E2 = 0.2402230932960942, E3 = 0.05587549725789244;
+  private static final double E4 = 0.009667249530498538;
+
+  /**
+   * x^y as 2^(y log2 x) with polynomial log2 and exp2 and no divide, for positive normal x and results within the
+   * normal range; see APPROXIMATE_POW_MAX_ERROR.
+   */
+  public static double approximatePow(double x, double y)
+  {
+    // x = 2^e * m with m in [3/4, 3/2)
+    long bits = Double.doubleToRawLongBits(x);
+    int e = (int)(bits >>> 52) - 1023;
+    double m = Double.longBitsToDouble((bits & 0x000fffffffffffffL) | 0x3ff0000000000000L);
+    if (m >= 1.5)
+    {
+      m *= 0.5;
+      e++;
+    }
+    double f = m - 1;
+    double log2 = e + f * (L1 + f * (L2 + f * (L3 + f * (L4 + f * (L5 + f * L6)))));
+
+    // 2^t = 2^n * 2^z with n the nearest integer and |z| <= 1/2
+    double t = y * log2;
+    long n = (long)(t + 1024.5) - 1024;
+    double z = t - n;
+    double p = 1 + z * (E1 + z * (E2 + z * (E3 + z * E4)));
+    return p * Double.longBitsToDouble((n + 1023) << 52);
+  }
+}
@@ -16,26 +16,33 @@ toLower(std::string const & s)
 }
 
 Image::Image(int w_, int h_, int nc_)
-: w(0), h(0), nc(0), buf(NULL)
+: w(0), h(0), nc(0), buf(NULL), owned(true)
 {
   resize(w_, h_, nc_);
 }
 
+Image::Image(int w_, int h_, int nc_, unsigned char * external)
+: w(w_), h(h_), nc(nc_), buf(external), owned(false)
+{
+}
+
 Image::Image(std::string const & path, int req_nc)
+: w(0), h(0), nc(0), buf(NULL), owned(true)
 {
   if (!load(path, req_nc))
     throw ("Could not load image from " + path).c_str();
 }
 
 Image::Image(Image const & src)
-: w(0), h(0), nc(0), buf(NULL)
+: w(0), h(0), nc(0), buf(NULL), owned(true)
 {
   *this = src;
 }
 
 Image::~Image()
 {
-  std::free(buf);
+  if (owned)
+    std::free(buf);
 }
 
 Image &
@@ -50,8 +57,10 @@ Image::operator=(Image const & src)
 bool
 Image::load(std::string const & path, int req_nc)
 {
-  std::free(buf);
+  if (owned)
+    std::free(buf);
   buf = stbi_load(path.c_str(), &w, &h, &nc, req_nc);
+  owned = true;
 
   if (!buf)
   {
@@ -106,7 +115,9 @@ Image::resize(int w_, int h_, int nc_)
     return false;
   }
 
-  std::free(buf);
+  if (owned)
+    std::free(buf);
+  owned = true;
 
   size_t num_bytes = (size_t)(w_ * h_ * nc_);
   if (num_bytes > 0)
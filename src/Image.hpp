@@ -9,14 +9,21 @@ class Image
   private:
     int w, h, nc;
     unsigned char * buf;
+    bool owned;  ///< Whether buf is freed with the image
 
   public:
     /** Default constructor. */
-    Image() : w(0), h(0), nc(0), buf(NULL) {}
+    Image() : w(0), h(0), nc(0), buf(NULL), owned(true) {}
 
     /** Create an empy image of the specified dimensions. */
     Image(int w_, int h_, int nc_);
 
+    /**
+     * Wrap an existing buffer of w_ x h_ pixels with nc_ bytes each, without copying it. The buffer is not freed with the
+     * image and must outlive it; resizing to other dimensions replaces it with an owned buffer.
+     */
+    Image(int w_, int h_, int nc_, unsigned char * external);
+
     /**
      * Load from a file. \a req_nc is the requested number of channels in the loaded image. If it is zero, the number of
      * channels in the disk image will be preserved. Else, the image will be converted to \a req_nc channels.
@@ -86,13 +86,12 @@ class LineSegment
       // projects before start()
       if(u < 0)
         return (p - start()).length();
-      // projects on the line
-      else if (u > 1)
-        return (p - start()).length();
       // projects after end()
+      else if (u > 1)
+        return (p - end()).length();
+      // projects on the line
       else
-        return abs(v);
-      return 0;
+        return std::fabs(v);
     }
 
     /** Get the unsigned distance of a point from the segment. */
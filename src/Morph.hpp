@@ -0,0 +1,26 @@
+#ifndef __Morph_hpp__
+#define __Morph_hpp__
+
+#include "Image.hpp"
+#include "LineSegment.hpp"
+#include <vector>
+
+/** Distort an image by the segments interpolated from \a seg_start to \a seg_end by \a t. */
+Image distortImage(Image const & image, std::vector<LineSegment> const & seg_start,
+                   std::vector<LineSegment> const & seg_end, double t, double a, double b, double p);
+
+/** Distort an image like distortImage, writing into \a result, which must have the same dimensions as \a image. */
+void distortImageInto(Image const & image, std::vector<LineSegment> const & seg_start,
+                      std::vector<LineSegment> const & seg_end, double t, double a, double b, double p, Image & result);
+
+/** Linearly blend two images: each channel is img1 * t + img2 * (1 - t). */
+Image blendImages(Image const & img1, Image const & img2, double t);
+
+/** Blend two images like blendImages, writing into \a result, which may be one of them. */
+void blendImagesInto(Image const & img1, Image const & img2, double t, Image & result);
+
+/** Morph img1 into img2 at time t. */
+Image morphImages(Image const & img1, Image const & img2, std::vector<LineSegment> const & seg1,
+                  std::vector<LineSegment> const & seg2, double t, double a, double b, double p);
+
+#endif // __Morph_hpp__
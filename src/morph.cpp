@@ -1,7 +1,13 @@
 #include "Algebra3.hpp"
 #include "Image.hpp"
 #include "LineSegment.hpp"
+#include "Morph.hpp"
 #include <cstdlib>
+#include <cstring>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
 #include <fstream>
 #include <iostream>
 #include <sstream>
@@ -70,17 +76,21 @@ sampleBilinear(Image const & image, Vec2 const & loc, unsigned char sampled_colo
   int h = image.height();
   int n = image.numChannels();
  
+  // position clamped to the image, so samples past the border repeat the edge pixels
+  double x = max(0.0, min(loc.x(), w - 1.0));
+  double y = max(0.0, min(loc.y(), h - 1.0));
+
   // raw cordinates
-  int col0 = floor(loc.x());
+  int col0 = floor(x);
   int col1 = col0 + 1;
-  int row0 = floor(loc.y());
+  int row0 = floor(y);
   int row1 = row0 + 1;
 
   // sanitized to get pixels form image
-  int pc0 = max(0, min(col0, w-1));
-  int pc1 = min(pc0 + 1, w-1);
-  int pr0 = max(0, min(row0, h-1));
-  int pr1 = min(pr0 + 1, h-1);
+  int pc0 = col0;
+  int pc1 = min(col1, w-1);
+  int pr0 = row0;
+  int pr1 = min(row1, h-1);
   
   // pixel values at the sanitized points
   const unsigned char * pix00 = image.pixel(pr0, pc0);
@@ -94,10 +104,10 @@ sampleBilinear(Image const & image, Vec2 const & loc, unsigned char sampled_colo
   {
     res = 0;
 
-    res += ((double)pix00[channel]) * (col1 - loc.x()) * (row1 - loc.y());
-    res += ((double)pix01[channel]) * (col1 - loc.x()) * (loc.y() - row0);
-    res += ((double)pix10[channel]) * (loc.x() - col0) * (row1 - loc.y());
-    res += ((double)pix11[channel]) * (loc.x() - col0) * (loc.y() - row0);
+    res += ((double)pix00[channel]) * (col1 - x) * (row1 - y);
+    res += ((double)pix01[channel]) * (x - col0) * (row1 - y);
+    res += ((double)pix10[channel]) * (col1 - x) * (y - row0);
+    res += ((double)pix11[channel]) * (x - col0) * (y - row0);
 
     sampled_color[channel] = min(255, max(0, (int)floor(res)));
   }
@@ -118,15 +128,29 @@ distortImage(Image const & image,
              double t,
              double a, double b, double p)
 {
-  assert(seg_start.size() == seg_end.size());
-
   std::cout << "Distorting image..." << std::endl;
 
+  Image result(image.width(), image.height(), image.numChannels());
+  distortImageInto(image, seg_start, seg_end, t, a, b, p, result);
+  return result;
+}
+
+/* Distorts an image like distortImage, writing into \a result, which must have the same dimensions as \a image. */
+void
+distortImageInto(Image const & image,
+                 std::vector<LineSegment> const & seg_start,
+                 std::vector<LineSegment> const & seg_end,
+                 double t,
+                 double a, double b, double p,
+                 Image & result)
+{
+  assert(seg_start.size() == seg_end.size());
+  assert(result.hasSameDimsAs(image));
+
   int w = image.width();
   int h = image.height();
   int n = image.numChannels();
-  
-  Image result(w, h, n);
+
   Vec2 interpolated, dis, dissum, curr;
   LineSegment start_ln, end_ln;
 
@@ -158,8 +182,8 @@ distortImage(Image const & image,
 
         // displacement vector from the line
         dis = (interpolated - curr);
-        // weight of this displacement
-        wt = pow(pow(start_ln.length(), p)/(a + start_ln.segmentDistance(curr, u, v)), b);
+        // weight of this displacement, from the distance to the interpolated segment u and v are measured on
+        wt = pow(pow(start_ln.length(), p)/(a + end_ln.segmentDistance(curr, u, v)), b);
         dissum += dis * wt;
         wtsum += wt;
       }
@@ -174,26 +198,32 @@ distortImage(Image const & image,
         pix[channel] = sample[channel];
     }
   }
-
-  return result;
 }
 
 /* Linearly blends corresponding pixels of two images to produce the resulting image. */
 Image
 blendImages(Image const & img1, Image const & img2, double t)
 {
-  assert(img1.hasSameDimsAs(img2));
-
   std::cout << "Blending images..." << std::endl;
 
+  Image result(img1.width(), img1.height(), img1.numChannels());
+  blendImagesInto(img1, img2, t, result);
+  return result;
+}
+
+/* Blends two images like blendImages, writing into \a result, which may be one of them. */
+void
+blendImagesInto(Image const & img1, Image const & img2, double t, Image & result)
+{
+  assert(img1.hasSameDimsAs(img2));
+  assert(result.hasSameDimsAs(img1));
+
   int w = img1.width();
   int h = img1.height();
   int n = img1.numChannels();
   unsigned char *res_pix;
   const unsigned char *pix_1, *pix_2;
 
-  Image result(w, h, n);
-
   for (int row = 0; row < h; ++row)
   {
     for (int col = 0; col < w; ++col)
@@ -211,8 +241,6 @@ blendImages(Image const & img1, Image const & img2, double t)
       }
     }
   }
-
-  return result;
 }
 
 /* Morph img1 into img2. */
@@ -248,13 +276,88 @@ morphImages(Image const & img1,
 ///////////////////////////////////////////////////////////////////////////////
 
 /**
- * Read segments defining the map between two images from a text file. Each line of the file consists of a single pair of
+ * Read segments from a binary correspondence file (see editor/CorrespondenceFile.java): the magic "MCOR", an int32 version
+ * (1), an int64 pair count n and 8 * n float64 in the order of a text line, all little-endian. The file is memory-mapped.
+ * Returns false, with \a is_binary unset, if the file does not start with the magic.
+ */
+static bool
+loadBinarySegments(std::string const & path, std::vector<LineSegment> & seg1, std::vector<LineSegment> & seg2,
+                   bool & is_binary)
+{
+  static char const MAGIC[4] = { 'M', 'C', 'O', 'R' };
+  static long const HEADER_BYTES = 16;
+
+  is_binary = false;
+  int fd = open(path.c_str(), O_RDONLY);
+  if (fd < 0)
+    return false;
+
+  struct stat st;
+  if (fstat(fd, &st) != 0 || st.st_size < HEADER_BYTES)
+  {
+    close(fd);
+    return false;
+  }
+
+  void * map = mmap(NULL, (size_t)st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+  close(fd);
+  if (map == MAP_FAILED)
+    return false;
+
+  unsigned char const * bytes = static_cast<unsigned char const *>(map);
+  bool ok = false;
+  if (std::memcmp(bytes, MAGIC, 4) == 0)
+  {
+    is_binary = true;
+
+    // The values are copied as they are, so the host must be little-endian too
+    int version = 0;
+    long long num_pairs = 0;
+    unsigned short probe = 1;
+    std::memcpy(&version, bytes + 4, 4);
+    std::memcpy(&num_pairs, bytes + 8, 8);
+    if (*reinterpret_cast<unsigned char *>(&probe) != 1)
+      std::cerr << "Binary correspondence files need a little-endian host" << std::endl;
+    else if (version != 1)
+      std::cerr << "Unsupported correspondence format version " << version << std::endl;
+    else if (num_pairs < 0 || (long long)st.st_size != HEADER_BYTES + 64 * num_pairs)
+      std::cerr << num_pairs << " pairs do not match the size of " << path << std::endl;
+    else
+    {
+      seg1.clear();
+      seg2.clear();
+      seg1.reserve((size_t)num_pairs);
+      seg2.reserve((size_t)num_pairs);
+
+      double v[8];
+      for (long long i = 0; i < num_pairs; ++i)
+      {
+        std::memcpy(v, bytes + HEADER_BYTES + 64 * i, sizeof(v));
+        seg1.push_back(LineSegment(Vec2(v[0], v[1]), Vec2(v[2], v[3])));
+        seg2.push_back(LineSegment(Vec2(v[4], v[5]), Vec2(v[6], v[7])));
+      }
+      ok = true;
+    }
+  }
+
+  munmap(map, (size_t)st.st_size);
+  return ok;
+}
+
+/**
+ * Read segments defining the map between two images from a text file, or from a binary correspondence file, which is told
+ * apart by its magic. Each line of the file consists of a single pair of
  * segments. A segment consists of two 2D points (x, y) defining its start and end. The two segments in a pair identify matching
  * features in the two images.
  */
 bool
 loadSegments(std::string const & path, std::vector<LineSegment> & seg1, std::vector<LineSegment> & seg2)
 {
+  bool is_binary;
+  bool binary_ok = loadBinarySegments(path, seg1, seg2, is_binary);
+  if (is_binary)
+    return binary_ok;
+
   std::ifstream in(path.c_str());
   if (!in)
   {
@@ -333,6 +436,8 @@ morphDriver(std::string const & img1_path, std::string const & img2_path, std::s
   return true;
 }
 
+#ifndef MORPH_LIBRARY
+
 int
 main(int argc, char * argv[])
 {
@@ -377,3 +482,4 @@ main(int argc, char * argv[])
   return 0;
 }
 
+#endif // MORPH_LIBRARY
@@ -0,0 +1,90 @@
+#include "Morph.hpp"
+#include "morph_capi.h"
+#include <vector>
+
+/*****************************************************************************
+C entry points of libmorph.so, for callers in other languages (the Java editor
+binds them through the Foreign Function & Memory API). Images are caller-owned
+buffers of w x h pixels with nc bytes each, wrapped without copying. Segment
+pairs are packed as 8 doubles each: asx asy aex aey bsx bsy bex bey, the
+format of the correspondence files.
+*****************************************************************************/
+
+namespace {
+
+void
+unpackPairs(double const * pairs, int num_pairs, std::vector<LineSegment> & seg1, std::vector<LineSegment> & seg2)
+{
+  seg1.clear();
+  seg2.clear();
+  for (int i = 0; i < num_pairs; ++i)
+  {
+    double const * q = pairs + 8 * i;
+    seg1.push_back(LineSegment(Vec2(q[0], q[1]), Vec2(q[2], q[3])));
+    seg2.push_back(LineSegment(Vec2(q[4], q[5]), Vec2(q[6], q[7])));
+  }
+}
+
+bool
+validDims(int w, int h, int nc)
+{
+  return w > 0 && h > 0 && nc > 0 && nc <= 4;
+}
+
+} // namespace
+
+int
+morph_distort(unsigned char const * src, unsigned char * dst, int w, int h, int nc, double const * pairs,
+              int num_pairs, int reverse, double t, double a, double b, double p)
+{
+  if (!src || !dst || !validDims(w, h, nc) || num_pairs < 1 || !pairs)
+    return -1;
+
+  std::vector<LineSegment> seg1, seg2;
+  unpackPairs(pairs, num_pairs, seg1, seg2);
+
+  Image image(w, h, nc, const_cast<unsigned char *>(src));
+  Image result(w, h, nc, dst);
+  if (reverse)
+    distortImageInto(image, seg2, seg1, t, a, b, p, result);
+  else
+    distortImageInto(image, seg1, seg2, t, a, b, p, result);
+
+  return 0;
+}
+
+int
+morph_blend(unsigned char const * src1, unsigned char const * src2, unsigned char * dst, int w, int h, int nc, double t)
+{
+  if (!src1 || !src2 || !dst || !validDims(w, h, nc))
+    return -1;
+
+  Image img1(w, h, nc, const_cast<unsigned char *>(src1));
+  Image img2(w, h, nc, const_cast<unsigned char *>(src2));
+  Image result(w, h, nc, dst);
+  blendImagesInto(img1, img2, t, result);
+
+  return 0;
+}
+
+int
+morph_morph(unsigned char const * src1, unsigned char const * src2, unsigned char * dst, int w, int h, int nc,
+            double const * pairs, int num_pairs, double t, double a, double b, double p)
+{
+  if (!src1 || !src2 || !dst || !validDims(w, h, nc) || num_pairs < 1 || !pairs)
+    return -1;
+
+  std::vector<LineSegment> seg1, seg2;
+  unpackPairs(pairs, num_pairs, seg1, seg2);
+
+  // img1 moves from 0 to t into dst, img2 from 1 to t into a scratch image, then blend in place
+  Image img1(w, h, nc, const_cast<unsigned char *>(src1));
+  Image img2(w, h, nc, const_cast<unsigned char *>(src2));
+  Image distorted1(w, h, nc, dst);
+  Image distorted2(w, h, nc);
+  distortImageInto(img1, seg1, seg2, t, a, b, p, distorted1);
+  distortImageInto(img2, seg2, seg1, 1 - t, a, b, p, distorted2);
+  blendImagesInto(distorted1, distorted2, 1 - t, distorted1);
+
+  return 0;
+}
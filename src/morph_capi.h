@@ -0,0 +1,26 @@
+#ifndef __morph_capi_h__
+#define __morph_capi_h__
+
+/* C interface of libmorph.so; see morph_capi.cpp. All functions return 0 on success and -1 on invalid arguments. */
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/* Distort a w x h image of nc bytes per pixel into dst. With reverse set the second segment of each pair is the start. */
+int morph_distort(unsigned char const * src, unsigned char * dst, int w, int h, int nc, double const * pairs,
+                  int num_pairs, int reverse, double t, double a, double b, double p);
+
+/* Blend two images into dst, which may be one of them: each channel is src1 * t + src2 * (1 - t). */
+int morph_blend(unsigned char const * src1, unsigned char const * src2, unsigned char * dst, int w, int h, int nc,
+                double t);
+
+/* Morph src1 into src2 at time t, writing the blended frame into dst. */
+int morph_morph(unsigned char const * src1, unsigned char const * src2, unsigned char * dst, int w, int h, int nc,
+                double const * pairs, int num_pairs, double t, double a, double b, double p);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* __morph_capi_h__ */